@@ -20,8 +20,11 @@ import android.os.AsyncTask;
 import android.util.AttributeSet;
 import android.widget.ImageView;
 
+import com.applidium.shutterbug.cache.CacheKey;
 import com.applidium.shutterbug.cache.DiskLruCache.Snapshot;
 import com.applidium.shutterbug.cache.ImageCache;
+import com.applidium.shutterbug.utils.Priority;
+import com.applidium.shutterbug.utils.ShutterbugExecutors;
 import com.applidium.shutterbug.utils.ShutterbugManager;
 import com.applidium.shutterbug.utils.ShutterbugManager.ShutterbugManagerListener;
 import com.techsmith.utilities.Bitmaps;
@@ -34,6 +37,8 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
     private boolean  mScaleImage = false;
     private Drawable mFailureDrawable;
     private String   mCurrentUrl;
+    private Priority mPriority = Priority.VISIBLE;
+    private ScaleImageTask mScaleTask;
     
     public interface FetchableImageViewListener {
         void onImageFetched(Bitmap bitmap, String url);
@@ -55,6 +60,20 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
         mListener = listener;
     }
 
+    /**
+     * Sets the priority of the images fetched by this view, e.g.
+     * {@link Priority#PREFETCH} for rows bound ahead of the visible ones of a
+     * list. Applies to the pending request, if any.
+     */
+    public void setPriority(Priority priority) {
+        mPriority = priority;
+        ShutterbugManager.getSharedImageManager(getContext()).setPriority(this, priority);
+    }
+
+    public Priority getPriority() {
+        return mPriority;
+    }
+
     public void setImage(String url) {
         Drawable transDrawable = new ColorDrawable(getContext().getResources().getColor(android.R.color.transparent));
         setImage(url, false, transDrawable, null);
@@ -78,19 +97,20 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
             return;
         }
         
-        boolean urlIsCached = ImageCache.getSharedImageCache(getContext()).hasKeyInMemory(url, getWidth(), getHeight());
+        final ShutterbugManager manager = ShutterbugManager.getSharedImageManager(getContext());
+        String variantUrl = manager.getVariantUrl(url, getWidth(), getHeight());
+        boolean urlIsCached = ImageCache.getSharedImageCache(getContext()).hasKeyInMemory(variantUrl, getWidth(), getHeight());
         if (!url.equals(mCurrentUrl) || !urlIsCached) {
            mCurrentUrl = url;
            mScaleImage = scaleImageToView;
            mFailureDrawable = failureDrawable;
            mGreyScale = greyScale;
-           final ShutterbugManager manager = ShutterbugManager.getSharedImageManager(getContext());
            manager.cancel(this);
            if (placeholderDrawable != null) {
               setImageDrawable(placeholderDrawable);
            }
            
-           manager.download(url, this);
+           manager.download(url, this, mPriority);
         }
     }
 
@@ -104,19 +124,31 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
         boolean imageNeedsToBeRescaled = getWidth() < bitmap.getWidth() && getHeight() < bitmap.getHeight();
         
         if (mScaleImage && getWidth() > 0 && getHeight() > 0 && imageNeedsToBeRescaled) {
+            final ScaleImageTask task = new ScaleImageTask(url, getWidth(), getHeight(), bitmap);
+            final Bitmap unscaledBitmap = bitmap;
+            mScaleTask = task;
+            // Replaces the scale still queued for a previous image of this view
             ThreadPoolAsyncTaskRunner.runTaskOnPool(
-                  ThreadPoolAsyncTaskRunner.THUMBNAIL_THREAD_POOL,
-                  new ScaleImageTask(url, getWidth(), getHeight(), bitmap),
+                  ShutterbugExecutors.getShared().getScaleExecutor().withPriority(mPriority, this, new Runnable() {
+                      @Override
+                      public void run() {
+                          // The scale queue is full, show the image as is
+                          if (mScaleTask == task && task.mUrl.equals(mCurrentUrl)) {
+                              mScaleTask = null;
+                              fadeInImage(mGreyScale ? getGrayscaleBitmap(unscaledBitmap) : unscaledBitmap);
+                          }
+                      }
+                  }),
+                  task,
                   (Object[]) null);
         } else {
+            mScaleTask = null;
             if (mGreyScale) {
                bitmap = getGrayscaleBitmap(bitmap);
                fadeInImage(bitmap);
             } else {
                fadeInImage(bitmap);
             }
-
-            ImageCache.getSharedImageCache(getContext()).storeToMemory(bitmap, ImageCache.getCacheKey(url));
         }
 
         if (mListener != null) {
@@ -164,12 +196,15 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
 
     public class ScaleImageTask extends AsyncTask<Object, Void, Bitmap> {
        protected String                   mUrl;
+       // The url of the variant served for this size, which the scaled image is cached under
+       protected String                   mVariantUrl;
        protected int                      mMaxWidth;
        protected int                      mMaxHeight;
        protected Bitmap                   mBitmap;
        
        public ScaleImageTask(String url, int maxWidth, int maxHeight, Bitmap bitmap) {
           mUrl = url;
+          mVariantUrl = ShutterbugManager.getSharedImageManager(getContext()).getVariantUrl(url, maxWidth, maxHeight);
           mMaxWidth = maxWidth;
           mMaxHeight = maxHeight;
           mBitmap = bitmap;
@@ -187,13 +222,13 @@ public class FetchableImageView extends ImageView implements ShutterbugManagerLi
           
           if (thumbnail != null) {
              ImageCache imageCache = ImageCache.getSharedImageCache(getContext());
-             imageCache.storeToMemory(thumbnail, ImageCache.getCacheKey(mUrl, getWidth(), getHeight()));
+             imageCache.storeToMemory(thumbnail, new CacheKey(mVariantUrl, getWidth(), getHeight()));
              
-             if (mUrl.startsWith("http")) {
+             if (mVariantUrl.startsWith("http")) {
                 ByteArrayOutputStream stream = new ByteArrayOutputStream();
                 thumbnail.compress(CompressFormat.JPEG, 100, stream);
                 InputStream inStream = new ByteArrayInputStream(stream.toByteArray());
-                Snapshot snapshot = imageCache.storeToDisk(inStream, ImageCache.getCacheKey(mUrl, getWidth(), getHeight()));
+                Snapshot snapshot = imageCache.storeToDisk(inStream, ImageCache.getCacheKey(mVariantUrl, getWidth(), getHeight()));
                 IO.closeQuietly( inStream );
                 if (snapshot != null) {
                     snapshot.close();
@@ -0,0 +1,61 @@
+package com.applidium.shutterbug.cache;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} reading the remaining bytes of a {@link ByteBuffer}.
+ * The buffer's position advances as bytes are read; pass a
+ * {@link ByteBuffer#duplicate()} to leave the original untouched.
+ */
+public class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer mBuffer;
+    private int              mMark;
+
+    public ByteBufferInputStream(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mMark = buffer.position();
+    }
+
+    @Override
+    public int read() {
+        return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (!mBuffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(length, mBuffer.remaining());
+        mBuffer.get(bytes, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long count) {
+        int skipped = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
+        mBuffer.position(mBuffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return mBuffer.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        mMark = mBuffer.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        mBuffer.position(mMark);
+    }
+}
@@ -0,0 +1,181 @@
+package com.applidium.shutterbug.cache;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * Key of a cached image: its url, the size it was scaled to and an optional
+ * transform name. A width and height of 0 designate the full-size image.
+ * <p>
+ * The hash code is computed once, and keys can be reused through
+ * {@link #set} as lookup probes, so that checking the memory cache allocates
+ * nothing. Keys used as probes must never be stored in a cache; store a
+ * {@link #copy} instead.
+ */
+public final class CacheKey {
+    // URL encodings are interned since the same urls are looked up over and
+    // over again while scrolling
+    private static final int                   ENCODED_URL_CACHE_SIZE = 256;
+    private static final LruCache<String, String> sEncodedUrls        = new LruCache<String, String>(ENCODED_URL_CACHE_SIZE);
+
+    private String                             mUrl;
+    private int                                mWidth;
+    private int                                mHeight;
+    private String                             mTransform;
+    private int                                mHash;
+    private String                             mDiskKey;
+    private final boolean                      mReusable;
+
+    public CacheKey(String url) {
+        this(url, 0, 0, null);
+    }
+
+    public CacheKey(String url, int width, int height) {
+        this(url, width, height, null);
+    }
+
+    public CacheKey(String url, int width, int height, String transform) {
+        this(false);
+        setFields(url, width, height, transform);
+    }
+
+    private CacheKey(boolean reusable) {
+        mReusable = reusable;
+    }
+
+    /**
+     * Returns a key meant to be reused as a lookup probe with {@link #set}.
+     */
+    public static CacheKey newProbe() {
+        return new CacheKey(true);
+    }
+
+    /**
+     * Reinitializes this probe. Only keys returned by {@link #newProbe()} can
+     * be reinitialized.
+     */
+    public CacheKey set(String url, int width, int height, String transform) {
+        if (!mReusable) {
+            throw new IllegalStateException("Only probes can be reinitialized");
+        }
+        setFields(url, width, height, transform);
+        return this;
+    }
+
+    private void setFields(String url, int width, int height, String transform) {
+        if (url == null) {
+            throw new NullPointerException("url == null");
+        }
+        // Any unusable size designates the full-size image
+        if (width <= 0 || height <= 0) {
+            width = 0;
+            height = 0;
+        }
+        mUrl = url;
+        mWidth = width;
+        mHeight = height;
+        mTransform = transform;
+        mDiskKey = null;
+
+        int hash = url.hashCode();
+        hash = 31 * hash + width;
+        hash = 31 * hash + height;
+        hash = 31 * hash + (transform != null ? transform.hashCode() : 0);
+        mHash = hash;
+    }
+
+    /**
+     * Returns an immutable copy of this key, suitable to be stored.
+     */
+    public CacheKey copy() {
+        return mReusable ? new CacheKey(mUrl, mWidth, mHeight, mTransform) : this;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public String getTransform() {
+        return mTransform;
+    }
+
+    public boolean isFullSize() {
+        return mWidth == 0 && mHeight == 0;
+    }
+
+    /**
+     * Returns the key of this image in the disk cache. Computed once for
+     * immutable keys.
+     */
+    public String getDiskKey() {
+        if (mDiskKey != null) {
+            return mDiskKey;
+        }
+
+        String encodedUrl = encode(mUrl);
+        String diskKey;
+        if (isFullSize() && mTransform == null) {
+            diskKey = encodedUrl;
+        } else {
+            // Underscores and digits are left as is by URL encoding
+            StringBuilder builder = new StringBuilder(encodedUrl.length() + 16);
+            builder.append(encodedUrl).append('_').append(mWidth).append('_').append(mHeight);
+            if (mTransform != null) {
+                builder.append('_').append(encode(mTransform));
+            }
+            diskKey = builder.toString();
+        }
+        if (!mReusable) {
+            mDiskKey = diskKey;
+        }
+        return diskKey;
+    }
+
+    /**
+     * Returns the URL encoding of {@code url}, from the interned encodings if
+     * it was encoded recently.
+     */
+    public static String encode(String url) {
+        String encoded = sEncodedUrls.get(url);
+        if (encoded == null) {
+            try {
+                encoded = URLEncoder.encode(url, "US-ASCII");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            sEncodedUrls.put(url, encoded);
+        }
+        return encoded;
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey other = (CacheKey) o;
+        return mHash == other.mHash && mWidth == other.mWidth && mHeight == other.mHeight && mUrl.equals(other.mUrl)
+                && (mTransform == null ? other.mTransform == null : mTransform.equals(other.mTransform));
+    }
+
+    @Override
+    public String toString() {
+        return "CacheKey[" + mUrl + "," + mWidth + "x" + mHeight + (mTransform != null ? "," + mTransform : "") + "]";
+    }
+}
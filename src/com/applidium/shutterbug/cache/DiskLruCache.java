@@ -35,6 +35,7 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -237,6 +238,7 @@ public final class DiskLruCache implements Closeable {
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
+    private int evictionCount;
 
     /**
      * To differentiate between old and current snapshots, each entry is given
@@ -481,7 +483,7 @@ public final class DiskLruCache implements Closeable {
             executorService.submit(cleanupCallable);
         }
 
-        return new Snapshot(key, entry.sequenceNumber, ins);
+        return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths.clone());
     }
 
     /**
@@ -531,6 +533,66 @@ public final class DiskLruCache implements Closeable {
         return maxSize;
     }
 
+    /**
+     * Returns snapshots of the entries for {@code keys}, acquiring the lock of
+     * this cache once for all of them. A snapshot is null if its key is null
+     * or has no readable entry.
+     */
+    public synchronized Snapshot[] getAll(String[] keys) throws IOException {
+        Snapshot[] snapshots = new Snapshot[keys.length];
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    snapshots[i] = get(keys[i]);
+                }
+            }
+        } catch (IOException e) {
+            for (Snapshot snapshot : snapshots) {
+                if (snapshot != null) {
+                    snapshot.close();
+                }
+            }
+            throw e;
+        }
+        return snapshots;
+    }
+
+    /**
+     * Returns true if there is a readable entry for {@code key}. Unlike
+     * {@link #get}, this neither opens the entry's files nor counts as an
+     * access.
+     */
+    public synchronized boolean contains(String key) {
+        Entry entry = lruEntries.get(key);
+        return entry != null && entry.readable;
+    }
+
+    /**
+     * Returns true if an edit of the entry for {@code key} is in progress.
+     */
+    public synchronized boolean isEditing(String key) {
+        Entry entry = lruEntries.get(key);
+        return entry != null && entry.currentEditor != null;
+    }
+
+    /**
+     * Waits for at most {@code timeoutMillis} until no edit of the entry for
+     * {@code key} is in progress.
+     *
+     * @return false if an edit is still in progress
+     */
+    public synchronized boolean awaitEdit(String key, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while (isEditing(key)) {
+            long remainingMillis = (deadline - System.nanoTime()) / 1000000L;
+            if (remainingMillis <= 0) {
+                return false;
+            }
+            wait(remainingMillis);
+        }
+        return true;
+    }
+
     /**
      * Returns the number of bytes currently being used to store the values in
      * this cache. This may be greater than the max size if a background
@@ -540,6 +602,22 @@ public final class DiskLruCache implements Closeable {
         return size;
     }
 
+    /**
+     * Returns the number of journal operations that a rebuild of the journal
+     * would drop.
+     */
+    public synchronized int redundantOpCount() {
+        return redundantOpCount;
+    }
+
+    /**
+     * Returns the number of entries that have been evicted to honor the
+     * maximum size of this cache.
+     */
+    public synchronized int evictionCount() {
+        return evictionCount;
+    }
+
     private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
         Entry entry = editor.entry;
         if (entry.currentEditor != editor) {
@@ -574,6 +652,8 @@ public final class DiskLruCache implements Closeable {
 
         redundantOpCount++;
         entry.currentEditor = null;
+        // Wake up the threads waiting in awaitEdit()
+        notifyAll();
         if (entry.readable | success) {
             entry.readable = true;
             journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
@@ -677,6 +757,7 @@ public final class DiskLruCache implements Closeable {
         while (size > maxSize) {
             Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();//lruEntries.eldest();
             remove(toEvict.getKey());
+            evictionCount++;
         }
     }
 
@@ -708,11 +789,13 @@ public final class DiskLruCache implements Closeable {
         private final String key;
         private final long sequenceNumber;
         private final InputStream[] ins;
+        private final long[] lengths;
 
-        private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+        private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths) {
             this.key = key;
             this.sequenceNumber = sequenceNumber;
             this.ins = ins;
+            this.lengths = lengths;
         }
 
         /**
@@ -731,6 +814,13 @@ public final class DiskLruCache implements Closeable {
             return ins[index];
         }
 
+        /**
+         * Returns the byte length of the value for {@code index}.
+         */
+        public long getLength(int index) {
+            return lengths[index];
+        }
+
         /**
          * Returns the string value for {@code index}.
          */
@@ -772,6 +862,24 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Returns an unbuffered input stream to read what this edit has
+         * written so far at {@code index}, or null if nothing could be
+         * written. The output stream must be closed first.
+         */
+        public InputStream newUncommittedInputStream(int index) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                File dirty = entry.getDirtyFile(index);
+                if (hasErrors || !dirty.exists()) {
+                    return null;
+                }
+                return new FileInputStream(dirty);
+            }
+        }
+
         /**
          * Returns the last committed value as a string, or null if no value
          * has been committed.
@@ -797,6 +905,20 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Returns a new channel to write the value at {@code index}. Unlike
+         * {@link #newOutputStream}, the channel reports its I/O errors; the
+         * caller must abort this edit when one occurs.
+         */
+        public FileChannel newOutputChannel(int index) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                return new FileOutputStream(entry.getDirtyFile(index)).getChannel();
+            }
+        }
+
         /**
          * Sets the value at {@code index} to {@code value}.
          */
@@ -0,0 +1,84 @@
+package com.applidium.shutterbug.cache;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.applidium.shutterbug.utils.CancellationToken;
+
+/**
+ * Copies streams into disk cache files through large buffers shared by all
+ * copies. A {@link FileInputStream} given as is, such as the stored part of an
+ * interrupted download, is transferred by its channel instead. Downloads
+ * arrive wrapped in counting streams and always take the buffered path.
+ */
+final class DiskWriter {
+    private static final int                            BUFFER_SIZE        = 64 * 1024;
+    private static final int                            MAX_POOLED_BUFFERS = 4;
+    // Cancellation is checked between chunks of a channel transfer
+    private static final long                           TRANSFER_CHUNK     = 1024 * 1024;
+
+    private static final ConcurrentLinkedQueue<byte[]>  sBuffers           = new ConcurrentLinkedQueue<byte[]>();
+
+    private DiskWriter() {
+    }
+
+    /**
+     * Copies {@code in} to the end of {@code out} until {@code in} is
+     * exhausted or {@code token} requests cancellation.
+     *
+     * @param written
+     *            receives the number of bytes copied, also when an exception
+     *            is thrown
+     * @return true if {@code in} was copied to the end
+     */
+    static boolean copy(InputStream in, FileChannel out, CancellationToken token, long[] written) throws IOException {
+        if (in instanceof FileInputStream) {
+            return transfer(((FileInputStream) in).getChannel(), out, token, written);
+        }
+        byte[] bytes = sBuffers.poll();
+        if (bytes == null) {
+            bytes = new byte[BUFFER_SIZE];
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            for (;;) {
+                if (token != null && token.isCancellationRequested()) {
+                    return false;
+                }
+                int count = in.read(bytes);
+                if (count == -1) {
+                    return true;
+                }
+                buffer.clear();
+                buffer.limit(count);
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                written[0] += count;
+            }
+        } finally {
+            if (sBuffers.size() < MAX_POOLED_BUFFERS) {
+                sBuffers.offer(bytes);
+            }
+        }
+    }
+
+    private static boolean transfer(FileChannel in, FileChannel out, CancellationToken token, long[] written)
+            throws IOException {
+        for (;;) {
+            if (token != null && token.isCancellationRequested()) {
+                return false;
+            }
+            long count = out.transferFrom(in, out.position(), TRANSFER_CHUNK);
+            if (count == 0 && in.position() >= in.size()) {
+                return true;
+            }
+            out.position(out.position() + count);
+            written[0] += count;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.applidium.shutterbug.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A memory cache of encoded image bytes, keyed by disk cache key. It sits
+ * between the bitmap memory cache and the disk cache: encoded images are
+ * typically an order of magnitude smaller than their decoded pixels, so many
+ * more of them fit in the same budget, and a hit saves opening and reading a
+ * file from flash.
+ * <p>
+ * Bytes can be kept off the Java heap in direct {@link ByteBuffer}s.
+ */
+public class EncodedImageCache {
+    private final LruCache<String, ByteBuffer> mCache;
+    private final boolean                      mOffHeap;
+    private final int                          mMaxEntrySize;
+
+    /**
+     * @param maxBytes
+     *            the byte budget of this cache
+     * @param offHeap
+     *            true to store the bytes in direct buffers
+     */
+    public EncodedImageCache(int maxBytes, boolean offHeap) {
+        mCache = new LruCache<String, ByteBuffer>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, ByteBuffer value) {
+                return value.capacity();
+            }
+        };
+        mOffHeap = offHeap;
+        // A single image should not flush most of the cache
+        mMaxEntrySize = maxBytes / 4;
+    }
+
+    /**
+     * Returns true if an entry of {@code length} bytes would be accepted.
+     */
+    public boolean accepts(long length) {
+        return length > 0 && length <= mMaxEntrySize;
+    }
+
+    public void put(String diskKey, byte[] bytes, int offset, int length) {
+        if (!accepts(length)) {
+            return;
+        }
+        ByteBuffer buffer = mOffHeap ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+        buffer.put(bytes, offset, length);
+        buffer.flip();
+        mCache.put(diskKey, buffer.asReadOnlyBuffer());
+    }
+
+    /**
+     * Returns a stream over the bytes cached for {@code diskKey}, or null.
+     */
+    public InputStream getInputStream(String diskKey) {
+        ByteBuffer buffer = mCache.get(diskKey);
+        return buffer != null ? new ByteBufferInputStream(buffer.duplicate()) : null;
+    }
+
+    /**
+     * Returns a copy of the bytes cached for {@code diskKey}, or null.
+     */
+    public byte[] getBytes(String diskKey) {
+        ByteBuffer buffer = mCache.get(diskKey);
+        if (buffer == null) {
+            return null;
+        }
+        ByteBuffer duplicate = buffer.duplicate();
+        byte[] bytes = new byte[duplicate.remaining()];
+        duplicate.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads {@code length} bytes of {@code inputStream} straight into the
+     * buffer cached for {@code diskKey}, which must be {@link #accepts
+     * accepted}. Files are read by their channel, so off-heap entries are
+     * not staged through the heap.
+     * 
+     * @return a stream over the bytes read, or null if the stream ended early
+     */
+    public InputStream readAndPut(String diskKey, InputStream inputStream, int length) throws IOException {
+        if (!mOffHeap) {
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int count = inputStream.read(bytes, offset, length - offset);
+                if (count == -1) {
+                    return null;
+                }
+                offset += count;
+            }
+            mCache.put(diskKey, ByteBuffer.wrap(bytes).asReadOnlyBuffer());
+            return new ByteArrayInputStream(bytes);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        ReadableByteChannel channel = inputStream instanceof FileInputStream
+                ? ((FileInputStream) inputStream).getChannel() : Channels.newChannel(inputStream);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                return null;
+            }
+        }
+        buffer.flip();
+        ByteBuffer entry = buffer.asReadOnlyBuffer();
+        mCache.put(diskKey, entry);
+        return new ByteBufferInputStream(entry.duplicate());
+    }
+
+    public void remove(String diskKey) {
+        mCache.remove(diskKey);
+    }
+
+    /**
+     * Removes the entry for the full-size {@code diskKey} and the entries of
+     * its scaled variants, whose keys extend it with their size.
+     */
+    public void removeWithVariants(String diskKey) {
+        mCache.remove(diskKey);
+        String variantPrefix = diskKey + '_';
+        for (String key : mCache.snapshot().keySet()) {
+            if (key.startsWith(variantPrefix) && isSizeSuffix(key, variantPrefix.length())) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    // Matches the "<width>_<height>" and optional "_<transform>" that scaled
+    // keys append, so the keys of other URLs sharing the prefix are kept
+    private static boolean isSizeSuffix(String key, int start) {
+        int index = skipDigits(key, start);
+        if (index == start || index == key.length() || key.charAt(index) != '_') {
+            return false;
+        }
+        int heightStart = index + 1;
+        index = skipDigits(key, heightStart);
+        return index > heightStart && (index == key.length() || key.charAt(index) == '_');
+    }
+
+    private static int skipDigits(String key, int index) {
+        while (index < key.length() && Character.isDigit(key.charAt(index))) {
+            index++;
+        }
+        return index;
+    }
+
+    public void trimToSize(int maxBytes) {
+        mCache.trimToSize(maxBytes);
+    }
+
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    public boolean isOffHeap() {
+        return mOffHeap;
+    }
+
+    public int size() {
+        return mCache.size();
+    }
+
+    public int maxSize() {
+        return mCache.maxSize();
+    }
+
+    public int hitCount() {
+        return mCache.hitCount();
+    }
+
+    public int missCount() {
+        return mCache.missCount();
+    }
+}
@@ -1,13 +1,19 @@
 package com.applidium.shutterbug.cache;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.app.Activity;
 import android.app.ActivityManager;
@@ -15,11 +21,20 @@ import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.applidium.shutterbug.cache.DiskLruCache.Editor;
 import com.applidium.shutterbug.cache.DiskLruCache.Snapshot;
+import com.applidium.shutterbug.cache.MemoryBudgetController.MemoryBudgetListener;
+import com.applidium.shutterbug.metrics.ShutterbugMetrics;
+import com.applidium.shutterbug.metrics.Stage;
+import com.applidium.shutterbug.utils.CancellationToken;
 import com.applidium.shutterbug.utils.DownloadRequest;
+import com.applidium.shutterbug.utils.Priority;
+import com.applidium.shutterbug.utils.ShutterbugExecutors;
 import com.techsmith.utilities.Bitmaps;
 import com.techsmith.utilities.IO;
 import com.techsmith.utilities.ThreadPoolAsyncTaskRunner;
@@ -29,17 +44,59 @@ public class ImageCache {
         void onImageFound(ImageCache imageCache, Bitmap bitmap, String key, DownloadRequest downloadRequest);
 
         void onImageNotFound(ImageCache imageCache, String key, DownloadRequest downloadRequest);
+
+        /**
+         * Called instead of the other methods when the disk lookup was dropped
+         * because the decode queue overflowed.
+         */
+        void onImageQueryDropped(ImageCache imageCache, String key, DownloadRequest downloadRequest);
+    }
+
+    public interface DiskBatchListener {
+        void onDiskItemFound(ImageCache imageCache, int position, Bitmap bitmap);
+
+        void onDiskItemNotFound(ImageCache imageCache, int position);
+
+        void onDiskItemDropped(ImageCache imageCache, int position);
     }
 
     // 1 entry per key
     private final static int         DISK_CACHE_VALUE_COUNT = 1;
     // 100 MB of disk cache
     private final static int         DISK_CACHE_MAX_SIZE    = 100 * 1024 * 1024;
+    // Soft references kept to bitmaps evicted from the memory cache
+    private final static int         SECOND_CHANCE_MAX_ENTRIES = 64;
+    // Keys looked up together by batch disk queries
+    private final static int         DISK_BATCH_SIZE        = 16;
+    // URL encoding always escapes '~', so no url has a disk key ending with it
+    private final static String      PARTIAL_KEY_SUFFIX     = "~partial";
+    // Shorter downloads are cheaper to start over than to resume
+    private final static long        MIN_PARTIAL_LENGTH     = 64 * 1024;
+    private final static int         MAX_PARTIAL_HEADER_LENGTH = 1024;
 
     private static ImageCache        sImageCache;
     private Context                  mContext;
-    private LruCache<String, Bitmap> mMemoryCache;
+    private LruCache<CacheKey, Bitmap> mMemoryCache;
+    private volatile SecondChanceCache<CacheKey, Bitmap> mSecondChanceCache;
+    private MemoryBudgetController   mMemoryBudgetController;
+    private volatile EncodedImageCache mEncodedCache;
     private DiskLruCache             mDiskCache;
+    private int                      mClosedDiskEvictionCount;
+    private final AtomicInteger      mPendingDiskDecodes    = new AtomicInteger();
+    private final Handler            mMainHandler           = new Handler(Looper.getMainLooper());
+    // Disk lookups in flight by the key they look up, joined by the queries
+    // for the same key made meanwhile
+    private final Map<CacheKey, DiskQuery> mDiskQueries     = new HashMap<CacheKey, DiskQuery>();
+    // The same lookups by the requests waiting for them, guarded by mDiskQueries
+    private final Map<DownloadRequest, DiskQuery> mDiskQueriesByRequest = new HashMap<DownloadRequest, DiskQuery>();
+    private final ShutterbugMetrics  mMetrics               = ShutterbugMetrics.getSharedMetrics();
+    // Lookup keys reused on every memory cache query
+    private final ThreadLocal<CacheKey> mProbes             = new ThreadLocal<CacheKey>() {
+        @Override
+        protected CacheKey initialValue() {
+            return CacheKey.newProbe();
+        }
+    };
 
     ImageCache(Context context) {
         if (context instanceof Activity) {
@@ -51,19 +108,99 @@ public class ImageCache {
         // OutOfMemory exception.
         final int memClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass();
 
-        // Use 1/8th of the available memory for this memory cache.
+        // Start with 1/8th of the available memory for this memory cache, and
+        // let it adapt between 1/16th and 1/4th.
         final int cacheSize = 1024 * 1024 * memClass / 8;
+        final int minCacheSize = 1024 * 1024 * memClass / 16;
+        final int maxCacheSize = 1024 * 1024 * memClass / 4;
+        // Encoded images are much smaller than decoded ones, 1/32th of the
+        // memory holds a good number of them.
+        final int encodedCacheSize = 1024 * 1024 * memClass / 32;
 
-        mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
+        mMemoryCache = new LruCache<CacheKey, Bitmap>(cacheSize) {
             @Override
-            protected int sizeOf(String key, Bitmap bitmap) {
+            protected int sizeOf(CacheKey key, Bitmap bitmap) {
                 // The cache size will be measured in bytes rather than number
                 // of items.
                 return bitmap.getRowBytes() * bitmap.getHeight();
             }
+
+            @Override
+            protected void entryRemoved(boolean evicted, CacheKey key, Bitmap oldValue, Bitmap newValue) {
+                if (!evicted) {
+                    return;
+                }
+                mMetrics.increment(ShutterbugMetrics.MEMORY_EVICTIONS);
+                SecondChanceCache<CacheKey, Bitmap> secondChanceCache = mSecondChanceCache;
+                if (secondChanceCache != null) {
+                    secondChanceCache.put(key, oldValue);
+                }
+            }
         };
+        mSecondChanceCache = new SecondChanceCache<CacheKey, Bitmap>(SECOND_CHANCE_MAX_ENTRIES);
+        mMemoryBudgetController = new MemoryBudgetController(mMemoryCache, minCacheSize, maxCacheSize);
+        mEncodedCache = new EncodedImageCache(encodedCacheSize, false);
 
         openDiskCache();
+        registerMetrics();
+    }
+
+    private void registerMetrics() {
+        mMetrics.registerGauge(ShutterbugMetrics.MEMORY_BYTES, new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mMemoryCache.size();
+            }
+        });
+        mMetrics.registerGauge(ShutterbugMetrics.MEMORY_MAX_BYTES, new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mMemoryCache.maxSize();
+            }
+        });
+        mMetrics.registerGauge(ShutterbugMetrics.ENCODED_BYTES, new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                EncodedImageCache encodedCache = mEncodedCache;
+                return encodedCache != null ? encodedCache.size() : 0;
+            }
+        });
+        mMetrics.registerGauge(ShutterbugMetrics.DISK_BYTES, new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                DiskLruCache diskCache = mDiskCache;
+                return diskCache != null ? diskCache.size() : 0;
+            }
+        });
+        mMetrics.registerGauge(ShutterbugMetrics.DISK_MAX_BYTES, new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                DiskLruCache diskCache = mDiskCache;
+                return diskCache != null ? diskCache.maxSize() : 0;
+            }
+        });
+        mMetrics.registerGauge(ShutterbugMetrics.DISK_JOURNAL_REDUNDANT_OPS, new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                DiskLruCache diskCache = mDiskCache;
+                return diskCache != null ? diskCache.redundantOpCount() : 0;
+            }
+        });
+        mMetrics.registerCounter(ShutterbugMetrics.DISK_EVICTIONS, new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                synchronized (ImageCache.this) {
+                    DiskLruCache diskCache = mDiskCache;
+                    return mClosedDiskEvictionCount + (diskCache != null ? diskCache.evictionCount() : 0);
+                }
+            }
+        });
+        mMetrics.registerGauge(ShutterbugMetrics.QUEUE_DISK_DECODES, new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mPendingDiskDecodes.get();
+            }
+        });
     }
 
     public static ImageCache getSharedImageCache(Context context) {
@@ -73,92 +210,414 @@ public class ImageCache {
         return sImageCache;
     }
 
-    public void queryCache(String url, ImageCacheListener listener, DownloadRequest downloadRequest) {
+    public void queryCache(final String url, final ImageCacheListener listener, final DownloadRequest downloadRequest) {
         if (url == null) {
             listener.onImageNotFound(this, url, downloadRequest);
             return;
         }
         
-        String fullSizeCacheKey = getCacheKey(url);
-        String scaledCacheKey = "";
-        
         int desiredWidth = downloadRequest.getListener().getDesiredWidth();
         int desiredHeight = downloadRequest.getListener().getDesiredHeight();
         
         if ( desiredWidth > 0 && desiredHeight > 0 ) {
-            scaledCacheKey = getCacheKey(url, desiredWidth, desiredHeight);
-           
-            synchronized(mMemoryCache) {
-                Bitmap scaledBitmap = mMemoryCache.get(scaledCacheKey);
-                if (scaledBitmap != null) {
-                    listener.onImageFound(this, scaledBitmap, url, downloadRequest);
-                    return;
-                }
+            Bitmap scaledBitmap = getFromMemory(url, desiredWidth, desiredHeight);
+            if (scaledBitmap != null) {
+                mMetrics.increment(ShutterbugMetrics.MEMORY_HITS);
+                mMetrics.recordSince(Stage.CACHE_QUERY, downloadRequest.getCreatedAt(), downloadRequest.getStageTimings());
+                mMemoryBudgetController.onLookup(true);
+                listener.onImageFound(this, scaledBitmap, url, downloadRequest);
+                return;
             }
         }
 
         // First check the in-memory cache...
-        synchronized(mMemoryCache) {
-           Bitmap cachedBitmap = mMemoryCache.get(fullSizeCacheKey);
-   
-           if (cachedBitmap != null) {
-               // ...notify listener immediately, no need to go async
-               listener.onImageFound(this, cachedBitmap, url, downloadRequest);
-               return;
-           }
+        Bitmap cachedBitmap = getFromMemory(url, 0, 0);
+        if (cachedBitmap != null) {
+            // ...notify listener immediately, no need to go async
+            mMetrics.increment(ShutterbugMetrics.MEMORY_HITS);
+            mMetrics.recordSince(Stage.CACHE_QUERY, downloadRequest.getCreatedAt(), downloadRequest.getStageTimings());
+            mMemoryBudgetController.onLookup(true);
+            listener.onImageFound(this, cachedBitmap, url, downloadRequest);
+            return;
         }
+        mMetrics.increment(ShutterbugMetrics.MEMORY_MISSES);
+        mMetrics.recordSince(Stage.CACHE_QUERY, downloadRequest.getCreatedAt(), downloadRequest.getStageTimings());
+        mMemoryBudgetController.onLookup(false);
 
         if (mDiskCache != null) {
-           ThreadPoolAsyncTaskRunner.runTaskOnPool(
-                 ThreadPoolAsyncTaskRunner.THUMBNAIL_THREAD_POOL,
-                 new BitmapDecoderTask(url, listener, downloadRequest),
-                 (Object[]) null);
-           
+           CacheKey queryKey = new CacheKey(url, desiredWidth, desiredHeight);
+           DiskQuery query;
+           boolean isNewQuery;
+           Priority raisedPriority;
+           synchronized (mDiskQueries) {
+              query = mDiskQueries.get(queryKey);
+              isNewQuery = query == null;
+              if (isNewQuery) {
+                 query = new DiskQuery(queryKey, downloadRequest);
+                 mDiskQueries.put(queryKey, query);
+              }
+              raisedPriority = query.attach(downloadRequest, listener);
+           }
+           if (isNewQuery) {
+              startDiskQuery(query);
+           } else {
+              // Share the read and decode of the same image already in flight
+              mMetrics.increment(ShutterbugMetrics.DISK_COALESCED_QUERIES);
+              if (raisedPriority != null) {
+                 ShutterbugExecutors.getShared().getDiskExecutor().setPriority(query, raisedPriority);
+                 ShutterbugExecutors.getShared().getDecodeExecutor().setPriority(query, raisedPriority);
+              }
+           }
             return;
         }
         listener.onImageNotFound(this, url, downloadRequest);
     }
+
+    private void startDiskQuery(final DiskQuery query) {
+        mPendingDiskDecodes.incrementAndGet();
+        ThreadPoolAsyncTaskRunner.runTaskOnPool(
+              ShutterbugExecutors.getShared().getDiskExecutor().withPriority(query.getPriority(), query, new Runnable() {
+                  @Override
+                  public void run() {
+                      mPendingDiskDecodes.decrementAndGet();
+                      for (Map.Entry<DownloadRequest, ImageCacheListener> waiter : query.finish().entrySet()) {
+                          waiter.getValue().onImageQueryDropped(ImageCache.this, query.getUrl(), waiter.getKey());
+                      }
+                  }
+              }),
+              new BitmapDecoderTask(query),
+              (Object[]) null);
+    }
+
+    /**
+     * Looks {@code keys} up in the encoded and disk caches, each at its size
+     * and then at full size. Keys are looked up in chunks, opening the disk
+     * entries of a chunk in one acquisition of the disk cache lock, and the
+     * chunks run on the disk pool with the given priority and tag. Found
+     * images are decoded on the decode pool and stored in memory. The listener
+     * is notified on the main thread of each key, by its position in
+     * {@code keys}, including the keys dropped because the disk or decode
+     * queue overflowed.
+     */
+    public void queryDisk(List<CacheKey> keys, Priority priority, Object tag, final DiskBatchListener listener) {
+        for (int offset = 0; offset < keys.size(); offset += DISK_BATCH_SIZE) {
+            final int chunkStart = offset;
+            final int chunkEnd = Math.min(keys.size(), offset + DISK_BATCH_SIZE);
+            List<CacheKey> chunk = keys.subList(chunkStart, chunkEnd);
+            ThreadPoolAsyncTaskRunner.runTaskOnPool(
+                  ShutterbugExecutors.getShared().getDiskExecutor().withPriority(priority, tag, new Runnable() {
+                      @Override
+                      public void run() {
+                          for (int position = chunkStart; position < chunkEnd; position++) {
+                              listener.onDiskItemDropped(ImageCache.this, position);
+                          }
+                      }
+                  }),
+                  new DiskBatchTask(new ArrayList<CacheKey>(chunk), offset, priority, tag, listener),
+                  (Object[]) null);
+        }
+    }
+
+    /**
+     * Drops the queued chunks of the lookups started by {@link #queryDisk}
+     * with {@code tag}, whose keys will not be notified, and the queued
+     * decodes of the images they found, whose keys are notified as dropped.
+     */
+    public void cancelDiskQueries(Object tag) {
+        ShutterbugExecutors.getShared().getDiskExecutor().cancel(tag);
+        ShutterbugExecutors.getShared().getDecodeExecutor().drop(tag);
+    }
+
+    /**
+     * Detaches {@code downloadRequest} from its disk lookup. If no other
+     * request shares it, the lookup is dropped if it is still queued, and so
+     * is its decode. Its listener will not be notified.
+     */
+    public void cancelQuery(DownloadRequest downloadRequest) {
+        DiskQuery abandoned = null;
+        synchronized (mDiskQueries) {
+            DiskQuery query = mDiskQueriesByRequest.get(downloadRequest);
+            if (query != null && query.detach(downloadRequest)) {
+                mDiskQueries.remove(query.getKey());
+                abandoned = query;
+            }
+        }
+        if (abandoned != null) {
+            int dropped = ShutterbugExecutors.getShared().getDiskExecutor().cancel(abandoned);
+            if (dropped > 0) {
+                mPendingDiskDecodes.addAndGet(-dropped);
+            }
+            // Its decode releases the snapshot it holds once dropped
+            ShutterbugExecutors.getShared().getDecodeExecutor().drop(abandoned);
+        }
+    }
+
+    /**
+     * Moves the disk lookup of {@code downloadRequest} to {@code priority} if
+     * it is still queued. A lookup shared with other requests keeps the
+     * highest priority among them.
+     */
+    public void setQueryPriority(DownloadRequest downloadRequest, Priority priority) {
+        DiskQuery query;
+        Priority queryPriority;
+        synchronized (mDiskQueries) {
+            query = mDiskQueriesByRequest.get(downloadRequest);
+            queryPriority = query != null ? query.updatePriority() : null;
+        }
+        if (queryPriority != null) {
+            ShutterbugExecutors.getShared().getDiskExecutor().setPriority(query, queryPriority);
+            ShutterbugExecutors.getShared().getDecodeExecutor().setPriority(query, queryPriority);
+        }
+    }
+
     
     public boolean hasKeyInMemory(String url) {
-        synchronized(mMemoryCache) {
-            return mMemoryCache.get(getCacheKey(url)) != null;
-        }
+        return getFromMemory(url, 0, 0) != null;
     }
     
     public boolean hasKeyInMemory(String url, int preferredWidth, int preferredHeight) {
+        return getFromMemory(url, preferredWidth, preferredHeight) != null;
+    }
+
+    /**
+     * Returns true if the full-size image at {@code url} is in the disk cache.
+     */
+    public boolean hasKeyOnDisk(String url) {
+        DiskLruCache diskCache = mDiskCache;
+        return diskCache != null && diskCache.contains(getCacheKey(url));
+    }
+
+    /**
+     * Returns true if the full-size image at {@code url} is being written to
+     * the disk cache, in which case other writes of it fail until it is
+     * committed or aborted.
+     */
+    public boolean isBeingStored(String url) {
+        DiskLruCache diskCache = mDiskCache;
+        return diskCache != null && diskCache.isEditing(getCacheKey(url));
+    }
+
+    /**
+     * Waits for at most {@code timeoutMillis} until the full-size image at
+     * {@code url} is no longer being written to the disk cache.
+     *
+     * @return false if it still is
+     */
+    public boolean awaitStored(String url, long timeoutMillis) throws InterruptedException {
+        DiskLruCache diskCache = mDiskCache;
+        return diskCache == null || diskCache.awaitEdit(getCacheKey(url), timeoutMillis);
+    }
+
+    /**
+     * Looks an image up in the memory cache, falling back on the second-chance
+     * references of evicted bitmaps. A bitmap recovered from those references
+     * is promoted back into the memory cache. Unless it promotes a bitmap, this
+     * does not allocate.
+     */
+    private Bitmap getFromMemory(String url, int width, int height) {
+        CacheKey probe = mProbes.get().set(url, width, height, null);
         synchronized(mMemoryCache) {
-            return mMemoryCache.get(getCacheKey(url, preferredWidth, preferredHeight)) != null;
+            return getFromMemoryLocked(probe);
         }
     }
 
-    public static String getCacheKey(String url) {
-        try {
-            return URLEncoder.encode(url, "US-ASCII");
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
-            return null;
+    private Bitmap getFromMemoryLocked(CacheKey probe) {
+        Bitmap bitmap = mMemoryCache.get(probe);
+        SecondChanceCache<CacheKey, Bitmap> secondChanceCache = mSecondChanceCache;
+        if (bitmap == null && secondChanceCache != null) {
+            bitmap = secondChanceCache.take(probe);
+            if (bitmap != null) {
+                mMetrics.increment(ShutterbugMetrics.MEMORY_SECOND_CHANCE_HITS);
+                mMemoryCache.put(probe.copy(), bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Looks all of {@code keys} up in the memory cache at once, each at its
+     * size and then at full size, acquiring the memory cache lock once.
+     * 
+     * @return the bitmaps found, null where there was a miss
+     */
+    public Bitmap[] getFromMemory(List<CacheKey> keys) {
+        Bitmap[] bitmaps = new Bitmap[keys.size()];
+        CacheKey probe = mProbes.get();
+        int hitCount = 0;
+        synchronized(mMemoryCache) {
+            for (int i = 0; i < bitmaps.length; i++) {
+                CacheKey key = keys.get(i);
+                Bitmap bitmap = null;
+                if (!key.isFullSize()) {
+                    bitmap = getFromMemoryLocked(key);
+                }
+                if (bitmap == null) {
+                    bitmap = getFromMemoryLocked(probe.set(key.getUrl(), 0, 0, null));
+                }
+                if (bitmap != null) {
+                    hitCount++;
+                }
+                bitmaps[i] = bitmap;
+            }
+        }
+        mMetrics.add(ShutterbugMetrics.MEMORY_HITS, hitCount);
+        mMetrics.add(ShutterbugMetrics.MEMORY_MISSES, bitmaps.length - hitCount);
+        for (Bitmap bitmap : bitmaps) {
+            mMemoryBudgetController.onLookup(bitmap != null);
+        }
+        return bitmaps;
+    }
+
+    /**
+     * Enables or disables keeping soft references to bitmaps evicted from the
+     * memory cache. Enabled by default.
+     */
+    public void setSecondChanceCacheEnabled(boolean enabled) {
+        synchronized(mMemoryCache) {
+            if (!enabled) {
+                mSecondChanceCache = null;
+            } else if (mSecondChanceCache == null) {
+                mSecondChanceCache = new SecondChanceCache<CacheKey, Bitmap>(SECOND_CHANCE_MAX_ENTRIES);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bitmaps recovered from the second-chance
+     * references, i.e. the number of disk reads and decodes they saved.
+     */
+    public int getSavedDecodeCount() {
+        SecondChanceCache<CacheKey, Bitmap> secondChanceCache = mSecondChanceCache;
+        return secondChanceCache != null ? secondChanceCache.hitCount() : 0;
+    }
+
+    public SecondChanceCache<CacheKey, Bitmap> getSecondChanceCache() {
+        return mSecondChanceCache;
+    }
+
+    /**
+     * Sets the bounds, in bytes, between which the memory cache budget adapts
+     * to the hit ratio and to memory pressure.
+     */
+    public void setMemoryBudgetBounds(int minBytes, int maxBytes) {
+        mMemoryBudgetController.setBounds(minBytes, maxBytes);
+    }
+
+    /**
+     * Sets a listener notified each time the memory cache budget is resized.
+     */
+    public void setMemoryBudgetListener(MemoryBudgetListener listener) {
+        mMemoryBudgetController.setListener(listener);
+    }
+
+    public int getMemoryBudget() {
+        return mMemoryCache.maxSize();
+    }
+
+    /**
+     * Replaces the cache of encoded image bytes kept between the memory and
+     * disk caches.
+     * 
+     * @param maxBytes
+     *            the byte budget of the encoded cache, or 0 to disable it
+     * @param offHeap
+     *            true to store the bytes outside of the Java heap, in direct
+     *            buffers
+     */
+    public void setEncodedCacheSize(int maxBytes, boolean offHeap) {
+        EncodedImageCache previous = mEncodedCache;
+        mEncodedCache = maxBytes > 0 ? new EncodedImageCache(maxBytes, offHeap) : null;
+        if (previous != null) {
+            previous.evictAll();
         }
     }
+
+    /**
+     * Returns a stream over the encoded image cached for {@code diskKey} in
+     * memory, or null.
+     */
+    public InputStream getEncodedInputStream(String diskKey) {
+        EncodedImageCache encodedCache = mEncodedCache;
+        InputStream inputStream = encodedCache != null ? encodedCache.getInputStream(diskKey) : null;
+        mMetrics.increment(inputStream != null ? ShutterbugMetrics.ENCODED_HITS : ShutterbugMetrics.ENCODED_MISSES);
+        return inputStream;
+    }
+
+    /**
+     * Returns a stream over the value of {@code snapshot}, keeping a copy of
+     * its bytes in the encoded cache if they fit in it.
+     * 
+     * @return the stream, or null if the snapshot could not be read entirely
+     */
+    public InputStream readThroughEncodedCache(String diskKey, Snapshot snapshot) throws IOException {
+        EncodedImageCache encodedCache = mEncodedCache;
+        long length = snapshot.getLength(0);
+        if (encodedCache == null || !encodedCache.accepts(length)) {
+            return snapshot.getInputStream(0);
+        }
+
+        return encodedCache.readAndPut(diskKey, snapshot.getInputStream(0), (int) length);
+    }
+
+    /**
+     * Returns the disk cache key of the full-size image at {@code url}.
+     */
+    public static String getCacheKey(String url) {
+        return CacheKey.encode(url);
+    }
     
+    /**
+     * Returns the disk cache key of the image at {@code url} scaled to the
+     * given size.
+     */
     public static String getCacheKey(String url, int imageWidth, int imageHeight) {
-       return getCacheKey(String.format(Locale.getDefault(), "%s_%d_%d", url, imageWidth, imageHeight) );
+       return new CacheKey(url, imageWidth, imageHeight).getDiskKey();
     }
     
-    public void remove(String cacheKey) {
+    /**
+     * Removes the full-size image at {@code url} from the memory and disk
+     * caches. The encoded bytes of its scaled variants are removed too.
+     */
+    public void remove(String url) {
+        CacheKey cacheKey = new CacheKey(url);
         synchronized(mMemoryCache) {
-            mMemoryCache.remove(getCacheKey(cacheKey));
+            mMemoryCache.remove(cacheKey);
+            if (mSecondChanceCache != null) {
+                mSecondChanceCache.remove(cacheKey);
+            }
+        }
+
+        EncodedImageCache encodedCache = mEncodedCache;
+        if (encodedCache != null) {
+            encodedCache.removeWithVariants(cacheKey.getDiskKey());
         }
 
         try {
-            mDiskCache.remove(getCacheKey(cacheKey));
+            mDiskCache.remove(cacheKey.getDiskKey());
+            mDiskCache.remove(cacheKey.getDiskKey() + PARTIAL_KEY_SUFFIX);
         } catch ( IOException e ) {
             e.printStackTrace();
         }
     }
     
-    public List<Bitmap> removeByPrefix(String cacheKeyPrefix) {
+    public List<Bitmap> removeByPrefix(String urlPrefix) {
         synchronized(mMemoryCache) {
-            List<Bitmap> bitmaps = mMemoryCache.removeByPrefix(getCacheKey(cacheKeyPrefix));
+            List<Bitmap> bitmaps = new ArrayList<Bitmap>();
+            for (CacheKey cacheKey : mMemoryCache.snapshot().keySet()) {
+                if (cacheKey.getUrl().startsWith(urlPrefix)) {
+                    Bitmap bitmap = mMemoryCache.remove(cacheKey);
+                    if (bitmap != null) {
+                        bitmaps.add(bitmap);
+                    }
+                }
+            }
+            if (mSecondChanceCache != null) {
+                for (CacheKey cacheKey : mSecondChanceCache.keys()) {
+                    if (cacheKey.getUrl().startsWith(urlPrefix)) {
+                        mSecondChanceCache.remove(cacheKey);
+                    }
+                }
+            }
           
             // TODO: Try to remove from disk cache
           
@@ -169,66 +628,289 @@ public class ImageCache {
     public void clearMemoryCache() {
         synchronized(mMemoryCache) {
             mMemoryCache.evictAll();
+            clearSecondChanceCache();
+        }
+        clearEncodedCache();
+    }
+
+    private void clearSecondChanceCache() {
+        if (mSecondChanceCache != null) {
+            mSecondChanceCache.evictAll();
+        }
+    }
+
+    private void clearEncodedCache() {
+        EncodedImageCache encodedCache = mEncodedCache;
+        if (encodedCache != null) {
+            encodedCache.evictAll();
         }
     }
 
     public Snapshot storeToDisk(InputStream inputStream, String cacheKey) {
+        return storeToDisk(inputStream, cacheKey, null);
+    }
+
+    /**
+     * Copies {@code inputStream} to the disk cache entry for {@code cacheKey}.
+     * The copy is aborted, leaving any previous value of the entry untouched,
+     * as soon as {@code token} requests it.
+     * 
+     * @return a snapshot of the stored entry, or null if it could not be
+     *         stored or the copy was cancelled
+     */
+    public Snapshot storeToDisk(InputStream inputStream, String cacheKey, CancellationToken token) {
+        return storeToDisk(inputStream, cacheKey, token, null, -1);
+    }
+
+    /**
+     * Returns false if the disk cache is known not to have room for an image
+     * of {@code length} bytes, or -1 if its length is unknown.
+     */
+    public boolean hasRoomFor(long length) {
+        return length <= 0 || mDiskCache == null || mDiskCache.getDirectory().getUsableSpace() >= length;
+    }
+
+    /**
+     * Same as {@link #storeToDisk(InputStream, String, CancellationToken)}
+     * for a download that can be resumed: if the copy is interrupted, the
+     * bytes stored so far are kept as a {@link PartialDownload} of
+     * {@code cacheKey}, and they are dropped once the image is stored.
+     *
+     * @param validator
+     *            the ETag or Last-Modified date of the response, or null if
+     *            it cannot be resumed
+     * @param totalLength
+     *            the length of the whole image, or -1 if it is unknown
+     */
+    public Snapshot storeToDisk(InputStream inputStream, String cacheKey, CancellationToken token, String validator,
+            long totalLength) {
+        if (!hasRoomFor(totalLength)) {
+            // Fail before writing rather than once the disk is full
+            return null;
+        }
         try {
             Editor editor = mDiskCache.edit(cacheKey);
             if (editor != null) {
-               final OutputStream outputStream = editor.newOutputStream(0);
-               final int bufferSize = 1024;
+               final FileChannel outputChannel = editor.newOutputChannel(0);
+               boolean committed = false;
+               long[] written = new long[1];
                try {
-                  byte[] bytes = new byte[bufferSize];
-                  for (;;) {
-                     int count = inputStream.read(bytes, 0, bufferSize);
-                     if (count == -1)
-                        break;
-                     outputStream.write(bytes, 0, count);
+                  if (DiskWriter.copy(inputStream, outputChannel, token, written)) {
+                     outputChannel.close();
+                     editor.commit();
+                     committed = true;
                   }
-                  outputStream.close();
-                  editor.commit();
-                  return mDiskCache.get(cacheKey);
                } catch (Exception e) {
                   e.printStackTrace();
+               } finally {
+                  mMetrics.add(ShutterbugMetrics.DISK_BYTES_WRITTEN, written[0]);
+                  if (!committed) {
+                     // Release the entry, otherwise it could never be edited again
+                     IO.closeQuietly( outputChannel );
+                     if (validator != null && written[0] >= MIN_PARTIAL_LENGTH && written[0] < totalLength) {
+                        storePartialDownload(editor, cacheKey, validator, totalLength);
+                     }
+                     try {
+                        editor.abort();
+                     } catch (IOException e) {
+                        e.printStackTrace();
+                     }
+                  }
                }
+               if (committed && validator != null) {
+                  removePartialDownload(cacheKey);
+               }
+               return committed ? mDiskCache.get(cacheKey) : null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Keeps what {@code editor} wrote of the image as its partial download,
+     * after a header giving the validator and the total length.
+     */
+    private void storePartialDownload(Editor editor, String cacheKey, String validator, long totalLength) {
+        InputStream inputStream = null;
+        FileChannel outputChannel = null;
+        Editor partialEditor = null;
+        try {
+            inputStream = editor.newUncommittedInputStream(0);
+            if (inputStream == null) {
+                return;
+            }
+            partialEditor = mDiskCache.edit(cacheKey + PARTIAL_KEY_SUFFIX);
+            if (partialEditor == null) {
+                return;
+            }
+            outputChannel = partialEditor.newOutputChannel(0);
+            ByteBuffer header = ByteBuffer.wrap((validator + '\n' + totalLength + '\n').getBytes("UTF-8"));
+            while (header.hasRemaining()) {
+                outputChannel.write(header);
+            }
+            if (DiskWriter.copy(inputStream, outputChannel, null, new long[1])) {
+                outputChannel.close();
+                partialEditor.commit();
+                partialEditor = null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            IO.closeQuietly( inputStream );
+            IO.closeQuietly( outputChannel );
+            if (partialEditor != null) {
+                try {
+                    partialEditor.abort();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the bytes kept from an interrupted download of the image for
+     * {@code cacheKey}, or null if there are none. The caller must close it.
+     */
+    public PartialDownload getPartialDownload(String cacheKey) {
+        Snapshot snapshot = getSnapshot(cacheKey + PARTIAL_KEY_SUFFIX);
+        if (snapshot == null) {
+            return null;
+        }
+        InputStream inputStream = snapshot.getInputStream(0);
+        int[] headerLength = new int[1];
+        try {
+            String validator = readHeaderLine(inputStream, headerLength);
+            String totalLength = readHeaderLine(inputStream, headerLength);
+            if (validator != null && totalLength != null) {
+                long length = snapshot.getLength(0) - headerLength[0];
+                return new PartialDownload(snapshot, inputStream, validator, length, Long.parseLong(totalLength));
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
         }
+        snapshot.close();
+        removePartialDownload(cacheKey);
         return null;
     }
 
-    public void storeToMemory(Bitmap bitmap, String cacheKey) {
+    private static String readHeaderLine(InputStream inputStream, int[] headerLength) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = inputStream.read()) != -1 && headerLength[0] < MAX_PARTIAL_HEADER_LENGTH) {
+            headerLength[0]++;
+            if (b == '\n') {
+                return line.toString();
+            }
+            line.append((char) b);
+        }
+        return null;
+    }
+
+    public void removePartialDownload(String cacheKey) {
+        try {
+            mDiskCache.remove(cacheKey + PARTIAL_KEY_SUFFIX);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compresses a scaled variant of an image into its own disk cache entry,
+     * as a PNG if it has transparency and as a JPEG otherwise, so that it is
+     * found by later lookups of that size without decoding the original.
+     */
+    public void storeScaledToDisk(Bitmap bitmap, CacheKey cacheKey) {
+        if (mDiskCache == null || cacheKey.isFullSize()) {
+            return;
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        if (bitmap.hasAlpha()) {
+            bitmap.compress(CompressFormat.PNG, 100, stream);
+        } else {
+            bitmap.compress(CompressFormat.JPEG, 100, stream);
+        }
+        InputStream inStream = new ByteArrayInputStream(stream.toByteArray());
+        Snapshot snapshot = storeToDisk(inStream, cacheKey.getDiskKey());
+        IO.closeQuietly( inStream );
+        if (snapshot != null) {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the disk cache entry for {@code diskKey}, or null
+     * if it is not on disk. The caller must close it.
+     */
+    public Snapshot getSnapshot(String diskKey) {
+        DiskLruCache diskCache = mDiskCache;
+        if (diskCache == null) {
+            return null;
+        }
+        try {
+            return diskCache.get(diskKey);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public void storeToMemory(Bitmap bitmap, CacheKey cacheKey) {
         synchronized(mMemoryCache) {
-            mMemoryCache.put(cacheKey, bitmap);
+            mMemoryCache.put(cacheKey.copy(), bitmap);
         }
     }
     
     public void onTrimMemory(int level) {
+        // Shrinking the budget trims the memory cache to its new size. This
+        // must not be done while holding the memory cache lock.
+        mMemoryBudgetController.onTrimMemory(level);
         synchronized(mMemoryCache) {
-            if (mMemoryCache != null) {
-                if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) { // 60
-                    // Nearing middle of list of cached background apps
-                    mMemoryCache.evictAll();
-                } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) { // 40
-                    // Entering list of cached background apps
-                    mMemoryCache.trimToSize(mMemoryCache.size() / 2);
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) { // 80
+                // Next in line to be killed
+                mMemoryCache.evictAll();
+                clearSecondChanceCache();
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) { // 60
+                // Nearing middle of list of cached background apps
+                clearSecondChanceCache();
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) { // 40
+                // Entering list of cached background apps
+                if (mSecondChanceCache != null) {
+                    mSecondChanceCache.purge();
                 }
             }
         }
+
+        EncodedImageCache encodedCache = mEncodedCache;
+        if (encodedCache != null) {
+            if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+                encodedCache.evictAll();
+            } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+                encodedCache.trimToSize(encodedCache.size() / 2);
+            }
+        }
     }
     
     public void onLowMemory() {
+        mMemoryBudgetController.onLowMemory();
         if (mMemoryCache != null) {
             synchronized(mMemoryCache) {
                 mMemoryCache.evictAll();
+                clearSecondChanceCache();
             }
         }
+        clearEncodedCache();
     }
 
     public void clear() {
         try {
+            synchronized (this) {
+                mClosedDiskEvictionCount += mDiskCache.evictionCount();
+            }
             mDiskCache.delete();
             openDiskCache();
         } catch (IOException e) {
@@ -236,61 +918,406 @@ public class ImageCache {
         }
         synchronized(mMemoryCache) {
             mMemoryCache.evictAll();
+            clearSecondChanceCache();
         }
+        clearEncodedCache();
     }
 
-    private class BitmapDecoderTask extends AsyncTask<Object, Void, Bitmap> {
-        private String mUrl;
-        private ImageCacheListener mListener;
-        private DownloadRequest    mDownloadRequest;
+    /**
+     * A disk lookup of one image at one size, shared by the requests for it
+     * made while it is in flight, which are all notified of its result. Its
+     * state is guarded by {@link #mDiskQueries}.
+     */
+    private class DiskQuery {
+        private final CacheKey                                 mKey;
+        private final DownloadRequest                          mDownloadRequest;
+        private final Map<DownloadRequest, ImageCacheListener> mWaiters = new LinkedHashMap<DownloadRequest, ImageCacheListener>();
+        private Priority                                       mPriority;
 
-        public BitmapDecoderTask(String url, ImageCacheListener listener, DownloadRequest downloadRequest) {
-            mUrl = url;
-            mListener = listener;
+        DiskQuery(CacheKey key, DownloadRequest downloadRequest) {
+            mKey = key;
             mDownloadRequest = downloadRequest;
+            mPriority = downloadRequest.getPriority();
+        }
+
+        CacheKey getKey() {
+            return mKey;
+        }
+
+        String getUrl() {
+            return mKey.getUrl();
+        }
+
+        /**
+         * Returns the request the lookup was started for, which its stage
+         * timings are recorded in.
+         */
+        DownloadRequest getDownloadRequest() {
+            return mDownloadRequest;
+        }
+
+        Priority getPriority() {
+            synchronized (mDiskQueries) {
+                return mPriority;
+            }
         }
 
+        /**
+         * @return the new priority of the lookup if the request raised it,
+         *         null otherwise
+         */
+        Priority attach(DownloadRequest downloadRequest, ImageCacheListener listener) {
+            mWaiters.put(downloadRequest, listener);
+            mDiskQueriesByRequest.put(downloadRequest, this);
+            if (!downloadRequest.getPriority().isHigherThan(mPriority)) {
+                return null;
+            }
+            mPriority = downloadRequest.getPriority();
+            return mPriority;
+        }
+
+        /**
+         * @return true if no request is waiting for the lookup any more
+         */
+        boolean detach(DownloadRequest downloadRequest) {
+            mWaiters.remove(downloadRequest);
+            removeByRequest(downloadRequest);
+            return mWaiters.isEmpty();
+        }
+
+        /**
+         * Recomputes the priority of the lookup from the current priorities of
+         * its requests.
+         *
+         * @return the new priority, or null if it did not change
+         */
+        Priority updatePriority() {
+            Priority priority = null;
+            for (DownloadRequest downloadRequest : mWaiters.keySet()) {
+                if (downloadRequest.getPriority().isHigherThan(priority)) {
+                    priority = downloadRequest.getPriority();
+                }
+            }
+            if (priority == null || priority == mPriority) {
+                return null;
+            }
+            mPriority = priority;
+            return mPriority;
+        }
+
+        /**
+         * Takes the lookup out of the ones in flight, so that later queries
+         * start their own, and returns the requests to notify.
+         */
+        Map<DownloadRequest, ImageCacheListener> finish() {
+            synchronized (mDiskQueries) {
+                if (mDiskQueries.get(mKey) == this) {
+                    mDiskQueries.remove(mKey);
+                }
+                Map<DownloadRequest, ImageCacheListener> waiters = new LinkedHashMap<DownloadRequest, ImageCacheListener>(mWaiters);
+                for (DownloadRequest downloadRequest : waiters.keySet()) {
+                    removeByRequest(downloadRequest);
+                }
+                mWaiters.clear();
+                return waiters;
+            }
+        }
+
+        private void removeByRequest(DownloadRequest downloadRequest) {
+            if (mDiskQueriesByRequest.get(downloadRequest) == this) {
+                mDiskQueriesByRequest.remove(downloadRequest);
+            }
+        }
+    }
+
+    /**
+     * Looks a query up in the encoded and disk caches, then hands the decode
+     * over to the decode pool, which notifies the query.
+     */
+    private class BitmapDecoderTask extends AsyncTask<Object, Void, Boolean> {
+        private DiskQuery          mQuery;
+        private String             mUrl;
+        private DownloadRequest    mDownloadRequest;
+        private long               mQueuedAt;
+        private CacheKey           mFoundKey;
+
+        public BitmapDecoderTask(DiskQuery query) {
+            mQuery = query;
+            mUrl = query.getUrl();
+            mDownloadRequest = query.getDownloadRequest();
+            mQueuedAt = System.nanoTime();
+        }
+
+        /**
+         * @return true if the image was found and is being decoded
+         */
         @Override
-        protected Bitmap doInBackground(Object... params) {
+        protected Boolean doInBackground(Object... params) {
+            mPendingDiskDecodes.decrementAndGet();
+            mMetrics.recordSince(Stage.QUEUE_WAIT, mQueuedAt, mDownloadRequest.getStageTimings());
             InputStream inStream = null;
+            Snapshot snapshot = null;
+            boolean decoding = false;
             try {
-                String scaledCacheKey = getCacheKey(
-                      mUrl,
-                      mDownloadRequest.getListener().getDesiredWidth(),
-                      mDownloadRequest.getListener().getDesiredHeight());
-                Snapshot snapshot = mDiskCache.get(scaledCacheKey);
-                if (snapshot != null) {
-                   inStream = snapshot.getInputStream(0);
-                   return Bitmaps.safeDecodeStream(inStream);
+                CacheKey scaledCacheKey = mQuery.getKey();
+                CacheKey fullSizeCacheKey = new CacheKey(mUrl);
+
+                // Encoded bytes kept in memory spare us the disk read
+                mFoundKey = scaledCacheKey;
+                inStream = scaledCacheKey.isFullSize() ? null : getEncodedInputStream(scaledCacheKey.getDiskKey());
+                if (inStream == null) {
+                   mFoundKey = fullSizeCacheKey;
+                   inStream = getEncodedInputStream(fullSizeCacheKey.getDiskKey());
                 }
-                
-                snapshot = mDiskCache.get(getCacheKey(mUrl));
-                if (snapshot != null) {
-                   inStream = snapshot.getInputStream(0);
-                    return Bitmaps.safeDecodeStream(snapshot.getInputStream(0));
+
+                if (inStream == null) {
+                   long lookupStart = System.nanoTime();
+                   mFoundKey = scaledCacheKey;
+                   snapshot = scaledCacheKey.isFullSize() ? null : mDiskCache.get(scaledCacheKey.getDiskKey());
+                   if (snapshot == null) {
+                      mFoundKey = fullSizeCacheKey;
+                      snapshot = mDiskCache.get(fullSizeCacheKey.getDiskKey());
+                   }
+                   mMetrics.recordSince(Stage.DISK_READ, lookupStart, mDownloadRequest.getStageTimings());
+
+                   if (snapshot == null) {
+                      mMetrics.increment(ShutterbugMetrics.DISK_MISSES);
+                      return false;
+                   }
+                   mMetrics.increment(ShutterbugMetrics.DISK_HITS);
+                   inStream = readThroughEncodedCache(mFoundKey.getDiskKey(), snapshot);
+                   if (inStream == null) {
+                      return false;
+                   }
                 }
-                
-                return null;
+
+                // The decode owns the stream and snapshot from here on
+                final InputStream encodedStream = inStream;
+                final Snapshot encodedSnapshot = snapshot;
+                ShutterbugExecutors.getShared().decode(new Callable<Bitmap>() {
+                    @Override
+                    public Bitmap call() {
+                        try {
+                            long decodeStart = System.nanoTime();
+                            Bitmap bitmap = Bitmaps.safeDecodeStream(encodedStream);
+                            mMetrics.recordSince(Stage.DECODE, decodeStart, mDownloadRequest.getStageTimings());
+                            return bitmap;
+                        } finally {
+                            IO.closeQuietly( encodedStream );
+                            IO.closeQuietly( encodedSnapshot );
+                        }
+                    }
+                }, mQuery.getPriority(), mQuery, new ShutterbugExecutors.DecodeCallback() {
+                    @Override
+                    public void onDecoded(final Bitmap bitmap) {
+                        if (bitmap != null) {
+                            storeToMemory(bitmap, mFoundKey);
+                        }
+                        mMainHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                deliver(bitmap);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onDropped() {
+                        IO.closeQuietly( encodedStream );
+                        IO.closeQuietly( encodedSnapshot );
+                        for (Map.Entry<DownloadRequest, ImageCacheListener> waiter : mQuery.finish().entrySet()) {
+                            waiter.getValue().onImageQueryDropped(ImageCache.this, mUrl, waiter.getKey());
+                        }
+                    }
+                });
+                decoding = true;
+                return true;
             } catch (IOException e) {
                 e.printStackTrace();
-                return null;
+                return false;
             } finally {
-               IO.closeQuietly( inStream );
+               if (!decoding) {
+                  IO.closeQuietly( inStream );
+                  IO.closeQuietly( snapshot );
+               }
             }
         }
 
         @Override
-        protected void onPostExecute(Bitmap result) {
-            if (result != null) {
-                storeToMemory(result, getCacheKey(mUrl));
-                mListener.onImageFound(ImageCache.this, result, mUrl, mDownloadRequest);
-            } else {
-                mListener.onImageNotFound(ImageCache.this, mUrl, mDownloadRequest);
+        protected void onPostExecute(Boolean decoding) {
+            if (!decoding) {
+                deliver(null);
+            }
+        }
+
+        private void deliver(Bitmap result) {
+            // Every request that joined the lookup gets the same result
+            for (Map.Entry<DownloadRequest, ImageCacheListener> waiter : mQuery.finish().entrySet()) {
+                if (result != null) {
+                    waiter.getValue().onImageFound(ImageCache.this, result, mUrl, waiter.getKey());
+                } else {
+                    waiter.getValue().onImageNotFound(ImageCache.this, mUrl, waiter.getKey());
+                }
             }
         }
 
     }
     
+    private class DiskBatchTask extends AsyncTask<Object, Integer, Void> {
+        private final List<CacheKey>     mKeys;
+        private final int                mOffset;
+        private final Priority           mPriority;
+        private final Object             mTag;
+        private final DiskBatchListener  mListener;
+        private final long               mQueuedAt;
+
+        DiskBatchTask(List<CacheKey> keys, int offset, Priority priority, Object tag, DiskBatchListener listener) {
+            mKeys = keys;
+            mOffset = offset;
+            mPriority = priority;
+            mTag = tag;
+            mListener = listener;
+            mQueuedAt = System.nanoTime();
+        }
+
+        @Override
+        protected Void doInBackground(Object... params) {
+            mMetrics.recordSince(Stage.QUEUE_WAIT, mQueuedAt);
+            int count = mKeys.size();
+            InputStream[] streams = new InputStream[count];
+            CacheKey[] foundKeys = new CacheKey[count];
+
+            // Encoded bytes kept in memory spare us the disk read
+            for (int i = 0; i < count; i++) {
+                CacheKey key = mKeys.get(i);
+                foundKeys[i] = key;
+                streams[i] = key.isFullSize() ? null : getEncodedInputStream(key.getDiskKey());
+                if (streams[i] == null) {
+                    foundKeys[i] = new CacheKey(key.getUrl());
+                    streams[i] = getEncodedInputStream(foundKeys[i].getDiskKey());
+                }
+            }
+
+            // Then the disk, sized images first and full-size ones for the
+            // remaining keys, each pass in one acquisition of the disk lock
+            Snapshot[] snapshots = new Snapshot[count];
+            DiskLruCache diskCache = mDiskCache;
+            if (diskCache != null) {
+                long lookupStart = System.nanoTime();
+                try {
+                    String[] diskKeys = new String[count];
+                    for (int i = 0; i < count; i++) {
+                        CacheKey key = mKeys.get(i);
+                        if (streams[i] == null && !key.isFullSize()) {
+                            foundKeys[i] = key;
+                            diskKeys[i] = key.getDiskKey();
+                        }
+                    }
+                    snapshots = diskCache.getAll(diskKeys);
+                    for (int i = 0; i < count; i++) {
+                        diskKeys[i] = null;
+                        if (streams[i] == null && snapshots[i] == null) {
+                            foundKeys[i] = new CacheKey(mKeys.get(i).getUrl());
+                            diskKeys[i] = foundKeys[i].getDiskKey();
+                        }
+                    }
+                    Snapshot[] fullSizeSnapshots = diskCache.getAll(diskKeys);
+                    for (int i = 0; i < count; i++) {
+                        if (fullSizeSnapshots[i] != null) {
+                            snapshots[i] = fullSizeSnapshots[i];
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                mMetrics.recordSince(Stage.DISK_READ, lookupStart);
+            }
+
+            for (int i = 0; i < count; i++) {
+                InputStream inStream = streams[i];
+                boolean decoding = false;
+                try {
+                    if (inStream == null && snapshots[i] != null) {
+                        mMetrics.increment(ShutterbugMetrics.DISK_HITS);
+                        if (!isCancelled()) {
+                            inStream = readThroughEncodedCache(foundKeys[i].getDiskKey(), snapshots[i]);
+                        }
+                    } else if (inStream == null) {
+                        mMetrics.increment(ShutterbugMetrics.DISK_MISSES);
+                    }
+                    if (inStream != null && !isCancelled()) {
+                        decode(i, inStream, snapshots[i], foundKeys[i]);
+                        decoding = true;
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    if (!decoding) {
+                        IO.closeQuietly( inStream );
+                        IO.closeQuietly( snapshots[i] );
+                    }
+                }
+                if (!decoding) {
+                    publishProgress(i);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Hands the decode of the item at {@code position} over to the decode
+         * pool, which notifies it, also if the decode is dropped.
+         */
+        private void decode(final int position, final InputStream inStream, final Snapshot snapshot,
+                final CacheKey foundKey) {
+            ShutterbugExecutors.getShared().decode(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    try {
+                        long decodeStart = System.nanoTime();
+                        Bitmap bitmap = Bitmaps.safeDecodeStream(inStream);
+                        mMetrics.recordSince(Stage.DECODE, decodeStart);
+                        return bitmap;
+                    } finally {
+                        IO.closeQuietly( inStream );
+                        IO.closeQuietly( snapshot );
+                    }
+                }
+            }, mPriority, mTag, new ShutterbugExecutors.DecodeCallback() {
+                @Override
+                public void onDecoded(final Bitmap bitmap) {
+                    if (bitmap != null) {
+                        storeToMemory(bitmap, foundKey);
+                    }
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (bitmap != null) {
+                                mListener.onDiskItemFound(ImageCache.this, mOffset + position, bitmap);
+                            } else {
+                                mListener.onDiskItemNotFound(ImageCache.this, mOffset + position);
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onDropped() {
+                    IO.closeQuietly( inStream );
+                    IO.closeQuietly( snapshot );
+                    mListener.onDiskItemDropped(ImageCache.this, mOffset + position);
+                }
+            });
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... positions) {
+            for (int position : positions) {
+                mListener.onDiskItemNotFound(ImageCache.this, mOffset + position);
+            }
+        }
+    }
+
     private void openDiskCache() {
         File directory;
         if (android.os.Environment.getExternalStorageState().equals(android.os.Environment.MEDIA_MOUNTED)) {
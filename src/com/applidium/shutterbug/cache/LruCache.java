@@ -52,6 +52,24 @@ public class LruCache<K, V> {
         this.map = new LinkedHashMap<K, V>(0, 0.75f, true);
     }
 
+    /**
+     * Sets the size of the cache, evicting entries if the current size
+     * exceeds the new maximum.
+     * 
+     * @param maxSize
+     *            the new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        synchronized (this) {
+            this.maxSize = maxSize;
+        }
+        trimToSize(maxSize);
+    }
+
     /**
      * Returns the value for {@code key} if it exists in the cache or can be
      * created by {@code #create}. If a value was returned, it is moved to the
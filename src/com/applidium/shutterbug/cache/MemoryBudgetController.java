@@ -0,0 +1,179 @@
+package com.applidium.shutterbug.cache;
+
+import android.content.ComponentCallbacks2;
+
+import com.applidium.shutterbug.metrics.ShutterbugMetrics;
+
+/**
+ * Adjusts the maximum size of a {@link LruCache} between configured bounds.
+ * <p>
+ * Lookups are reported with {@link #onLookup}. After every window of lookups
+ * the budget grows by one step if the cache had to evict entries during that
+ * window, the hit ratio has improved since the last growth and the heap still
+ * has enough headroom. Memory pressure signals shrink the budget gradually,
+ * by a factor that depends on the trim level, never below the minimum.
+ */
+public class MemoryBudgetController {
+    public interface MemoryBudgetListener {
+        void onMemoryBudgetChanged(MemoryBudgetController controller, int oldMaxSize, int newMaxSize);
+    }
+
+    // Number of lookups between two evaluations of the budget
+    private static final int      LOOKUP_WINDOW            = 200;
+    // Minimal hit ratio improvement, in percents, justifying a further growth
+    private static final int      MIN_HIT_RATIO_GAIN       = 1;
+    // Fraction of the heap that must stay free after growing
+    private static final float    MIN_HEAP_HEADROOM        = 0.25f;
+    // Fraction of the bounds range added at each growth
+    private static final int      GROWTH_STEPS             = 8;
+
+    private final LruCache<?, ?>  mCache;
+    private int                   mMinSize;
+    private int                   mMaxSize;
+    private MemoryBudgetListener  mListener;
+
+    private int                   mWindowLookups;
+    private int                   mWindowHits;
+    private int                   mWindowStartEvictions;
+    private int                   mLastGrowthHitPercent    = -1;
+    private boolean               mGrowthStalled;
+
+    /**
+     * @param cache
+     *            the cache whose budget is controlled. Its current maximum size
+     *            is the initial budget.
+     * @param minSize
+     *            the budget is never shrunk below this size.
+     * @param maxSize
+     *            the budget is never grown above this size.
+     */
+    public MemoryBudgetController(LruCache<?, ?> cache, int minSize, int maxSize) {
+        mCache = cache;
+        setBounds(minSize, maxSize);
+        mWindowStartEvictions = cache.evictionCount();
+    }
+
+    public synchronized void setBounds(int minSize, int maxSize) {
+        if (minSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException("minSize <= 0 || maxSize < minSize");
+        }
+        mMinSize = minSize;
+        mMaxSize = maxSize;
+        resize(Math.max(minSize, Math.min(maxSize, mCache.maxSize())));
+        mGrowthStalled = false;
+        mLastGrowthHitPercent = -1;
+    }
+
+    public synchronized int getMinSize() {
+        return mMinSize;
+    }
+
+    public synchronized int getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized void setListener(MemoryBudgetListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Reports a lookup in the controlled cache.
+     */
+    public void onLookup(boolean hit) {
+        synchronized (this) {
+            mWindowLookups++;
+            if (hit) {
+                mWindowHits++;
+            }
+            if (mWindowLookups < LOOKUP_WINDOW) {
+                return;
+            }
+        }
+        evaluate();
+    }
+
+    private synchronized void evaluate() {
+        int hitPercent = 100 * mWindowHits / mWindowLookups;
+        int evictions = mCache.evictionCount();
+        boolean cacheIsFull = evictions > mWindowStartEvictions;
+
+        mWindowLookups = 0;
+        mWindowHits = 0;
+        mWindowStartEvictions = evictions;
+
+        if (!cacheIsFull || mCache.maxSize() >= mMaxSize) {
+            return;
+        }
+        if (mLastGrowthHitPercent >= 0 && hitPercent < mLastGrowthHitPercent + MIN_HIT_RATIO_GAIN) {
+            // The last growth did not pay off, wait for pressure to reset us
+            mGrowthStalled = true;
+            return;
+        }
+        if (mGrowthStalled) {
+            return;
+        }
+
+        int step = Math.max(1, (mMaxSize - mMinSize) / GROWTH_STEPS);
+        int newSize = (int) Math.min((long) mCache.maxSize() + step, mMaxSize);
+        if (!hasHeapHeadroom(newSize - mCache.maxSize())) {
+            return;
+        }
+        mLastGrowthHitPercent = hitPercent;
+        resize(newSize);
+    }
+
+    private static boolean hasHeapHeadroom(long extraBytes) {
+        Runtime runtime = Runtime.getRuntime();
+        long maxHeap = runtime.maxMemory();
+        long usedHeap = runtime.totalMemory() - runtime.freeMemory();
+        return maxHeap - usedHeap - extraBytes > maxHeap * MIN_HEAP_HEADROOM;
+    }
+
+    /**
+     * Shrinks the budget according to the given
+     * {@link ComponentCallbacks2#onTrimMemory} level.
+     */
+    public synchronized void onTrimMemory(int level) {
+        float factor;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            factor = 0f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            factor = 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            factor = 0.75f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            factor = 0.5f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            factor = 0.75f;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            factor = 0.9f;
+        } else {
+            return;
+        }
+        shrink(factor);
+    }
+
+    public synchronized void onLowMemory() {
+        shrink(0f);
+    }
+
+    private void shrink(float factor) {
+        resize(Math.max(mMinSize, (int) (mCache.maxSize() * factor)));
+        // Pressure changes the picture, allow growing again from here
+        mGrowthStalled = false;
+        mLastGrowthHitPercent = -1;
+    }
+
+    private void resize(int newSize) {
+        int oldSize = mCache.maxSize();
+        if (newSize == oldSize) {
+            return;
+        }
+        mCache.resize(newSize);
+
+        ShutterbugMetrics.getSharedMetrics().increment(newSize > oldSize ? ShutterbugMetrics.MEMORY_BUDGET_GROWTHS : ShutterbugMetrics.MEMORY_BUDGET_SHRINKS);
+        if (mListener != null) {
+            mListener.onMemoryBudgetChanged(this, oldSize, newSize);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.applidium.shutterbug.cache;
+
+import java.io.Closeable;
+import java.io.InputStream;
+
+import com.applidium.shutterbug.cache.DiskLruCache.Snapshot;
+
+/**
+ * The first bytes of an image whose download was interrupted, kept in the disk
+ * cache with the validator of the response they came from, so that the
+ * download can resume with a range request.
+ */
+public class PartialDownload implements Closeable {
+    private final Snapshot    mSnapshot;
+    private final InputStream mInputStream;
+    private final String      mValidator;
+    private final long        mLength;
+    private final long        mTotalLength;
+
+    PartialDownload(Snapshot snapshot, InputStream inputStream, String validator, long length, long totalLength) {
+        mSnapshot = snapshot;
+        mInputStream = inputStream;
+        mValidator = validator;
+        mLength = length;
+        mTotalLength = totalLength;
+    }
+
+    /**
+     * Returns the ETag or Last-Modified date of the response.
+     */
+    public String getValidator() {
+        return mValidator;
+    }
+
+    /**
+     * Returns the number of bytes stored.
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Returns the length of the whole image.
+     */
+    public long getTotalLength() {
+        return mTotalLength;
+    }
+
+    /**
+     * Returns the stored bytes. Closing the stream closes this download.
+     */
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    @Override
+    public void close() {
+        mSnapshot.close();
+    }
+}
@@ -0,0 +1,163 @@
+package com.applidium.shutterbug.cache;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A bounded map of soft references to values that were evicted from a
+ * {@link LruCache}. Evicted values are frequently still referenced elsewhere
+ * (for instance by a view on screen) or requested again shortly after, so
+ * keeping a soft reference lets a lookup recover them without going back to
+ * disk. The garbage collector is free to clear any entry at any time.
+ * <p>
+ * Values are handed back with {@link #take}, which removes them from this
+ * cache: callers are expected to promote them back into the primary cache.
+ */
+public class SecondChanceCache<K, V> {
+    private final LinkedHashMap<K, SoftReference<V>> map;
+    private final int                                maxEntries;
+
+    private int                                      putCount;
+    private int                                      hitCount;
+    private int                                      missCount;
+    private int                                      collectedCount;
+
+    /**
+     * @param maxEntries
+     *            the maximum number of references kept. The oldest reference
+     *            is dropped when this is exceeded.
+     */
+    public SecondChanceCache(int maxEntries) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries <= 0");
+        }
+        this.maxEntries = maxEntries;
+        this.map = new LinkedHashMap<K, SoftReference<V>>(0, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, SoftReference<V>> eldest) {
+                return size() > SecondChanceCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Keeps a soft reference to {@code value} for {@code key}, replacing any
+     * previous reference.
+     */
+    public synchronized void put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        putCount++;
+        map.put(key, new SoftReference<V>(value));
+    }
+
+    /**
+     * Removes and returns the value for {@code key} if its reference has not
+     * been cleared yet, or null otherwise.
+     */
+    public synchronized V take(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        SoftReference<V> reference = map.remove(key);
+        V value = reference != null ? reference.get() : null;
+        if (value != null) {
+            hitCount++;
+        } else {
+            if (reference != null) {
+                collectedCount++;
+            }
+            missCount++;
+        }
+        return value;
+    }
+
+    /**
+     * Returns true if a reference for {@code key} exists and has not been
+     * cleared. Does not affect statistics.
+     */
+    public synchronized boolean contains(K key) {
+        SoftReference<V> reference = map.get(key);
+        return reference != null && reference.get() != null;
+    }
+
+    public synchronized void remove(K key) {
+        map.remove(key);
+    }
+
+    /**
+     * Returns a copy of the keys currently held, whether or not their
+     * reference has been cleared.
+     */
+    public synchronized List<K> keys() {
+        return new ArrayList<K>(map.keySet());
+    }
+
+    /**
+     * Drops all the references whose value has already been collected.
+     */
+    public synchronized void purge() {
+        for (Iterator<SoftReference<V>> it = map.values().iterator(); it.hasNext();) {
+            if (it.next().get() == null) {
+                it.remove();
+                collectedCount++;
+            }
+        }
+    }
+
+    public synchronized void evictAll() {
+        map.clear();
+    }
+
+    public synchronized final int size() {
+        return map.size();
+    }
+
+    public final int maxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Returns the number of values that were recovered by {@link #take}, i.e.
+     * the number of disk reads and decodes this cache has saved.
+     */
+    public synchronized final int hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of times {@link #take} returned null.
+     */
+    public synchronized final int missCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of references found cleared by the garbage collector.
+     */
+    public synchronized final int collectedCount() {
+        return collectedCount;
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public synchronized final int putCount() {
+        return putCount;
+    }
+
+    @Override
+    public synchronized final String toString() {
+        return String.format(Locale.getDefault(), "SecondChanceCache[maxEntries=%d,size=%d,hits=%d,misses=%d,collected=%d]", maxEntries,
+                map.size(), hitCount, missCount, collectedCount);
+    }
+}
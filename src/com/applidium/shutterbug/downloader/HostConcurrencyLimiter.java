@@ -0,0 +1,231 @@
+package com.applidium.shutterbug.downloader;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.applidium.shutterbug.metrics.ShutterbugMetrics;
+import com.applidium.shutterbug.utils.Priority;
+
+/**
+ * Limits the number of downloads running at once from each host. Each limit
+ * adapts with additive increase and multiplicative decrease: it grows by one
+ * download per round of successful downloads while the total throughput of
+ * the host keeps up, and is halved on timeouts and on 429 or 503 responses.
+ * Limits stay within the bounds given to the constructor.
+ * <p>
+ * Downloads over the limit wait, by {@link Priority} and newest first, until
+ * a download of the same host finishes.
+ */
+public class HostConcurrencyLimiter {
+    public enum Outcome {
+        /** The download completed */
+        SUCCESS,
+        /** The host timed out or asked to slow down */
+        CONGESTED,
+        /** Any other failure or a cancellation, which says nothing of the host */
+        FAILED
+    }
+
+    private static final double     DECREASE_FACTOR  = 0.5;
+    // Increases stop once adding downloads no longer adds throughput
+    private static final double     THROUGHPUT_SLACK = 0.9;
+    private static final double     THROUGHPUT_ALPHA = 0.2;
+
+    private final int               mMinLimit;
+    private final int               mMaxLimit;
+    private final int               mInitialLimit;
+    private final Map<String, Host> mHosts           = new HashMap<String, Host>();
+    private final ShutterbugMetrics mMetrics         = ShutterbugMetrics.getSharedMetrics();
+    private long                    mSequence;
+
+    private static class Host {
+        double                      mLimit;
+        int                         mRunning;
+        double                      mThroughput;
+        final PriorityQueue<Waiter> mWaiters = new PriorityQueue<Waiter>();
+
+        Host(double limit) {
+            mLimit = limit;
+        }
+    }
+
+    private static class Waiter implements Comparable<Waiter> {
+        final Runnable mStart;
+        final Priority mPriority;
+        final long     mSequence;
+        final Object   mTag;
+
+        Waiter(Runnable start, Priority priority, long sequence, Object tag) {
+            mStart = start;
+            mPriority = priority;
+            mSequence = sequence;
+            mTag = tag;
+        }
+
+        @Override
+        public int compareTo(Waiter other) {
+            if (mPriority != other.mPriority) {
+                return mPriority.ordinal() < other.mPriority.ordinal() ? -1 : 1;
+            }
+            return mSequence > other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    public HostConcurrencyLimiter(int minLimit, int maxLimit, int initialLimit) {
+        mMinLimit = Math.max(1, minLimit);
+        mMaxLimit = Math.max(mMinLimit, maxLimit);
+        mInitialLimit = Math.min(mMaxLimit, Math.max(mMinLimit, initialLimit));
+        mMetrics.registerGauge(ShutterbugMetrics.HTTP_WAITING_DOWNLOADS, new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getWaitingCount();
+            }
+        });
+    }
+
+    /**
+     * Runs {@code start} right away if {@code host} is under its limit,
+     * otherwise once a download of {@code host} finishes, on the thread that
+     * finished it. Every start must be followed by exactly one
+     * {@link #release}.
+     */
+    public void acquire(String host, Priority priority, Object tag, Runnable start) {
+        synchronized (this) {
+            Host state = getHost(host);
+            if (state.mRunning >= (int) state.mLimit) {
+                state.mWaiters.add(new Waiter(start, priority, ++mSequence, tag));
+                return;
+            }
+            state.mRunning++;
+        }
+        start.run();
+    }
+
+    /**
+     * Drops the waiting start submitted with {@code tag}.
+     *
+     * @return true if it was still waiting
+     */
+    public synchronized boolean cancel(String host, Object tag) {
+        Host state = mHosts.get(host);
+        if (state == null) {
+            return false;
+        }
+        for (Iterator<Waiter> it = state.mWaiters.iterator(); it.hasNext();) {
+            if (it.next().mTag == tag) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the waiting start submitted with {@code tag} to {@code priority}.
+     */
+    public synchronized void setPriority(String host, Object tag, Priority priority) {
+        Host state = mHosts.get(host);
+        if (state == null) {
+            return;
+        }
+        for (Iterator<Waiter> it = state.mWaiters.iterator(); it.hasNext();) {
+            Waiter waiter = it.next();
+            if (waiter.mTag == tag) {
+                it.remove();
+                state.mWaiters.add(new Waiter(waiter.mStart, priority, waiter.mSequence, tag));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Ends a download started by {@link #acquire}, adapts the limit of its
+     * host and starts the downloads now under it.
+     *
+     * @param bytes
+     *            the bytes transferred, for successful downloads
+     * @param nanos
+     *            the duration of the transfer, for successful downloads
+     */
+    public void release(String host, Outcome outcome, long bytes, long nanos) {
+        List<Runnable> starts = new ArrayList<Runnable>();
+        synchronized (this) {
+            Host state = getHost(host);
+            int running = state.mRunning;
+            state.mRunning = Math.max(0, running - 1);
+            if (outcome == Outcome.CONGESTED) {
+                double limit = Math.max(mMinLimit, state.mLimit * DECREASE_FACTOR);
+                if (limit < state.mLimit) {
+                    mMetrics.increment(ShutterbugMetrics.HTTP_LIMIT_DECREASES);
+                }
+                state.mLimit = limit;
+            } else if (outcome == Outcome.SUCCESS && bytes > 0 && nanos > 0) {
+                // Downloads running together share the bandwidth of the host
+                double throughput = bytes * 1e9 / nanos * running;
+                boolean keepsUp = state.mThroughput == 0 || throughput >= state.mThroughput * THROUGHPUT_SLACK;
+                state.mThroughput = state.mThroughput == 0
+                        ? throughput
+                        : state.mThroughput + THROUGHPUT_ALPHA * (throughput - state.mThroughput);
+                // Only a limit that was reached has proven too low
+                if (keepsUp && running >= (int) state.mLimit && state.mLimit < mMaxLimit) {
+                    int before = (int) state.mLimit;
+                    state.mLimit = Math.min(mMaxLimit, state.mLimit + 1 / state.mLimit);
+                    if ((int) state.mLimit > before) {
+                        mMetrics.increment(ShutterbugMetrics.HTTP_LIMIT_INCREASES);
+                    }
+                }
+            }
+            while (state.mRunning < (int) state.mLimit && !state.mWaiters.isEmpty()) {
+                state.mRunning++;
+                starts.add(state.mWaiters.poll().mStart);
+            }
+            if (state.mRunning == 0 && state.mWaiters.isEmpty() && state.mLimit == mInitialLimit) {
+                // Idle hosts back at the initial limit are forgotten, gauge included
+                mHosts.remove(host);
+                mMetrics.unregisterGauge(ShutterbugMetrics.HTTP_LIMIT_PREFIX + host);
+            }
+        }
+        for (Runnable start : starts) {
+            start.run();
+        }
+    }
+
+    /**
+     * Returns the number of downloads {@code host} is currently allowed.
+     */
+    public synchronized int getLimit(String host) {
+        Host state = mHosts.get(host);
+        return state != null ? (int) state.mLimit : mInitialLimit;
+    }
+
+    /**
+     * Returns the number of downloads waiting for their host to be under its
+     * limit.
+     */
+    public synchronized int getWaitingCount() {
+        int count = 0;
+        for (Host state : mHosts.values()) {
+            count += state.mWaiters.size();
+        }
+        return count;
+    }
+
+    private Host getHost(final String host) {
+        Host state = mHosts.get(host);
+        if (state == null) {
+            state = new Host(mInitialLimit);
+            mHosts.put(host, state);
+            mMetrics.registerGauge(ShutterbugMetrics.HTTP_LIMIT_PREFIX + host, new ShutterbugMetrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return getLimit(host);
+                }
+            });
+        }
+        return state;
+    }
+}
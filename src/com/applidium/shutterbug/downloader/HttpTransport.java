@@ -0,0 +1,60 @@
+package com.applidium.shutterbug.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Opens the HTTP connections of {@link ShutterbugDownloader}. The default
+ * transport is a {@link UrlConnectionTransport}; another one, e.g. backed by
+ * an HTTP/2 client multiplexing requests over one connection per host, can be
+ * installed with {@link ShutterbugDownloader#setTransport}.
+ */
+public interface HttpTransport {
+    public interface Response {
+        /**
+         * Adds a header to the request. Must be called before
+         * {@link #getResponseCode()}.
+         */
+        void setRequestHeader(String name, String value);
+
+        /**
+         * Returns the value of a response header, or null if it is missing.
+         */
+        String getHeaderField(String name);
+
+        /**
+         * Sends the request if needed and returns the status code.
+         */
+        int getResponseCode() throws IOException;
+
+        /**
+         * Returns the length of the body, or -1 if it is unknown.
+         */
+        long getContentLength();
+
+        /**
+         * Returns the body. Closing it once read to the end returns the
+         * connection to the pool.
+         */
+        InputStream getBody() throws IOException;
+
+        /**
+         * Releases a response whose body is not wanted, keeping its connection
+         * for other requests when possible.
+         */
+        void release();
+
+        /**
+         * Closes the connection, making blocked reads fail. Can be called from
+         * any thread.
+         */
+        void disconnect();
+    }
+
+    /**
+     * Prepares a GET request for {@code url}. The connection may only be
+     * established by {@link Response#getResponseCode()}, so that the request
+     * can be disconnected before that.
+     */
+    Response open(String url, int timeoutMillis) throws IOException;
+}
@@ -7,7 +7,14 @@ import android.content.Context;
 import android.os.AsyncTask;
 
 import com.applidium.shutterbug.utils.AssetParser;
+import com.applidium.shutterbug.metrics.ShutterbugMetrics;
+import com.applidium.shutterbug.metrics.Stage;
+import com.applidium.shutterbug.metrics.StageTimings;
 import com.applidium.shutterbug.utils.DownloadRequest;
+import com.applidium.shutterbug.utils.FailureReason;
+import com.applidium.shutterbug.utils.Priority;
+import com.applidium.shutterbug.utils.ShutterbugExecutors;
+import com.techsmith.utilities.IO;
 
 public class ShutterbugAssetOpener implements ShutterbugStreamOpener {
 
@@ -15,6 +22,8 @@ public class ShutterbugAssetOpener implements ShutterbugStreamOpener {
     private ShutterbugOnOpenedListener         mListener;
     private DownloadRequest                    mDownloadRequest;
     private AsyncTask<Void, Void, InputStream> mCurrentTask;
+    private StageTimings                       mStageTimings;
+    private FailureReason                      mFailureReason = FailureReason.NOT_FOUND;
 
     public ShutterbugAssetOpener( Context context, ShutterbugOnOpenedListener listener, DownloadRequest request ) {
         mContext = context;
@@ -24,28 +33,28 @@ public class ShutterbugAssetOpener implements ShutterbugStreamOpener {
 
     @Override
     public void start() {
+        if ( mStageTimings == null ) {
+            mStageTimings = StageTimings.createIfListening();
+        }
+        mFailureReason = FailureReason.NOT_FOUND;
+        final long queuedAt = System.nanoTime();
         mCurrentTask = new AsyncTask<Void, Void, InputStream>() {
 
             @Override
             protected InputStream doInBackground(Void... params) {
-                InputStream in = null;
-                
-                try {
-                    String relativePath = AssetParser.relativePathForAssetUri(getResourceUrl());
-                    
-                    if ( relativePath != null ) {
-                        in = mContext.getAssets().open( relativePath );
-                    }
-                } catch ( IOException e ) {
-                    e.printStackTrace();
-                }
-                
-                return in;
+                ShutterbugMetrics.getSharedMetrics().recordSince(Stage.QUEUE_WAIT, queuedAt, mStageTimings);
+                return openStream();
+            }
+
+            @Override
+            protected void onCancelled( InputStream result ) {
+                IO.closeQuietly( result );
             }
 
             @Override
             protected void onPostExecute( InputStream result ) {
                 if ( isCancelled() ) {
+                    IO.closeQuietly( result );
                     result = null;
                 }
                 
@@ -57,16 +66,66 @@ public class ShutterbugAssetOpener implements ShutterbugStreamOpener {
             }
         };
         
-        mCurrentTask.execute(); // TODO common executor
+        mCurrentTask.executeOnExecutor(ShutterbugExecutors.getShared().getDiskExecutor().withPriority(mDownloadRequest.getPriority(), this, new Runnable() {
+            @Override
+            public void run() {
+                mFailureReason = FailureReason.DROPPED;
+                mListener.onImageOpenFailure( ShutterbugAssetOpener.this, mDownloadRequest );
+            }
+        }));
+    }
+
+    @Override
+    public InputStream openStream() {
+        InputStream in = null;
+        
+        try {
+            String relativePath = AssetParser.relativePathForAssetUri(getResourceUrl());
+            
+            if ( relativePath != null ) {
+                in = mContext.getAssets().open( relativePath );
+            }
+        } catch ( IOException e ) {
+            e.printStackTrace();
+        }
+        
+        return in;
     }
 
     @Override
     public void cancel() {
         if ( mCurrentTask != null ) {
             mCurrentTask.cancel( true );
+            ShutterbugExecutors.getShared().getDiskExecutor().cancel( this );
         }
     }
 
+    @Override
+    public void setPriority( Priority priority ) {
+        ShutterbugExecutors.getShared().getDiskExecutor().setPriority( this, priority );
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public String getValidator() {
+        return null;
+    }
+
+    @Override
+    public StageTimings getStageTimings() {
+        return mStageTimings;
+    }
+
+    @Override
+    public FailureReason getFailureReason() {
+        // Assets are part of the APK, a failure to open one will not go away
+        return mFailureReason;
+    }
+
     @Override
     public String getResourceUrl() {
         return mDownloadRequest.getUrl();
@@ -2,26 +2,60 @@ package com.applidium.shutterbug.downloader;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 
+import com.applidium.shutterbug.cache.ImageCache;
+import com.applidium.shutterbug.cache.PartialDownload;
+import com.applidium.shutterbug.downloader.HostConcurrencyLimiter.Outcome;
+import com.applidium.shutterbug.metrics.ShutterbugMetrics;
+import com.applidium.shutterbug.metrics.Stage;
+import com.applidium.shutterbug.metrics.StageTimings;
 import com.applidium.shutterbug.utils.DownloadRequest;
+import com.applidium.shutterbug.utils.FailureReason;
+import com.applidium.shutterbug.utils.Priority;
+import com.applidium.shutterbug.utils.PriorityExecutor;
+import com.applidium.shutterbug.utils.ShutterbugExecutors;
+import com.techsmith.utilities.IO;
 
 public class ShutterbugDownloader implements ShutterbugStreamOpener {
-    private static final int                   DOWNLOAD_THREADPOOL_SIZE = 5;
     private final static int                   TIMEOUT = 30000;
-    
-    private static Executor                    sDownloadExecutor;
+    private final static int                   MIN_DOWNLOADS_PER_HOST = 1;
+    private final static int                   MAX_DOWNLOADS_PER_HOST = 8;
+    private final static int                   INITIAL_DOWNLOADS_PER_HOST = 4;
+    private final static int                   HTTP_TOO_MANY_REQUESTS = 429;
+    private final static int                   HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    private static volatile HttpTransport      sTransport = new UrlConnectionTransport();
+    private static volatile HostConcurrencyLimiter sHostLimiter = new HostConcurrencyLimiter(MIN_DOWNLOADS_PER_HOST,
+            MAX_DOWNLOADS_PER_HOST, INITIAL_DOWNLOADS_PER_HOST);
+    private static Handler                     sMainHandler;
 
     private ShutterbugOnOpenedListener         mListener;
     private DownloadRequest                    mDownloadRequest;
     private AsyncTask<Void, Void, InputStream> mCurrentTask;
+    private volatile FailureReason             mFailureReason = FailureReason.TRANSIENT;
+    private volatile HttpTransport.Response    mResponse;
+    private volatile long                      mContentLength = -1;
+    private volatile String                    mValidator;
+    private ImageCache                         mResumeCache;
+    private volatile boolean                   mCancelled;
+    private volatile boolean                   mCongested;
+    private volatile HostPermit                mPermit;
+    private StageTimings                       mStageTimings;
+    private int                                mTimeout = TIMEOUT;
 
     public ShutterbugDownloader(ShutterbugOnOpenedListener listener, DownloadRequest downloadRequest) {
         mListener = listener;
@@ -33,22 +67,51 @@ public class ShutterbugDownloader implements ShutterbugStreamOpener {
         return mDownloadRequest.getUrl();
     }
 
+    private static synchronized Handler getMainHandler() {
+        if (sMainHandler == null) {
+            sMainHandler = new Handler(Looper.getMainLooper());
+        }
+        return sMainHandler;
+    }
+
+    private static PriorityExecutor getDownloadExecutor() {
+        return ShutterbugExecutors.getShared().getNetworkExecutor();
+    }
+
     @Override
     public void start() {
-        if (sDownloadExecutor == null) {
-            sDownloadExecutor = Executors.newFixedThreadPool(DOWNLOAD_THREADPOOL_SIZE);
+        mCancelled = false;
+        if (mStageTimings == null) {
+            mStageTimings = StageTimings.createIfListening();
         }
-
+        final long queuedAt = System.nanoTime();
+        final HostPermit permit = new HostPermit(getHost(mDownloadRequest.getUrl()));
+        mPermit = permit;
         mCurrentTask = new AsyncTask<Void, Void, InputStream>() {
 
             @Override
             protected InputStream doInBackground(Void... params) {
-                return getBitmapUsingPath( mDownloadRequest.getUrl() );
+                ShutterbugMetrics metrics = ShutterbugMetrics.getSharedMetrics();
+                metrics.recordSince(Stage.QUEUE_WAIT, queuedAt, mStageTimings);
+                long openStart = System.nanoTime();
+                InputStream in = openStream();
+                metrics.recordSince(Stage.NETWORK, openStart, mStageTimings);
+                if (in == null) {
+                    permit.release(mCongested ? Outcome.CONGESTED : Outcome.FAILED, 0, 0);
+                    return null;
+                }
+                return permit.mHost != null ? new PermitInputStream(in, permit) : in;
+            }
+
+            @Override
+            protected void onCancelled(InputStream inputStream) {
+                IO.closeQuietly(inputStream);
             }
 
             @Override
             protected void onPostExecute(InputStream inputStream) {
                 if (isCancelled()) {
+                    IO.closeQuietly(inputStream);
                     inputStream = null;
                 }
 
@@ -58,37 +121,374 @@ public class ShutterbugDownloader implements ShutterbugStreamOpener {
                     mListener.onImageOpenFailure(ShutterbugDownloader.this, mDownloadRequest);
                 }
             }
-            
-            private InputStream getBitmapUsingPath( String pathToImage ) {
-               InputStream in = null;
-               try {
-                  if ( pathToImage.startsWith( File.separator ) ) {
-                     File bitmapFile = new File( pathToImage );
-                     in = new FileInputStream( bitmapFile );
-                  } else {
-                     URL imageUrl = new URL(pathToImage);
-                     HttpURLConnection connection = (HttpURLConnection) imageUrl.openConnection();
-                     connection.setConnectTimeout(TIMEOUT);
-                     connection.setReadTimeout(TIMEOUT);
-                     connection.setInstanceFollowRedirects(true);
-                     in = connection.getInputStream();
-                  }
-               } catch ( IOException e ) {
-                  e.printStackTrace();
-               }
 
-               return in;
+        };
+
+        final AsyncTask<Void, Void, InputStream> task = mCurrentTask;
+        final Runnable executeTask = new Runnable() {
+            @Override
+            public void run() {
+                if (mCancelled) {
+                    permit.release(Outcome.FAILED, 0, 0);
+                    return;
+                }
+                task.executeOnExecutor(getDownloadExecutor().withPriority(mDownloadRequest.getPriority(),
+                        ShutterbugDownloader.this));
             }
+        };
+        Runnable execute = new Runnable() {
+            @Override
+            public void run() {
+                permit.mAcquired = true;
+                // A waiting download is granted its permit on the thread
+                // releasing one, but tasks must be executed from the main thread
+                if (Looper.myLooper() == Looper.getMainLooper()) {
+                    executeTask.run();
+                } else {
+                    getMainHandler().post(executeTask);
+                }
+            }
+        };
+        if (permit.mHost != null) {
+            permit.mLimiter.acquire(permit.mHost, mDownloadRequest.getPriority(), this, execute);
+        } else {
+            execute.run();
+        }
+    }
 
+    @Override
+    public InputStream openStream() {
+        mFailureReason = FailureReason.TRANSIENT;
+        mCongested = false;
+        mContentLength = -1;
+        mValidator = null;
+        String pathToImage = mDownloadRequest.getUrl();
+        InputStream in = null;
+        try {
+            if ( pathToImage.startsWith( File.separator ) ) {
+                File bitmapFile = new File( pathToImage );
+                in = new FileInputStream( bitmapFile );
+                mContentLength = bitmapFile.length();
+            } else {
+                in = openHttpStream(pathToImage, mResumeCache != null);
+            }
+        } catch ( FileNotFoundException e ) {
+            mFailureReason = FailureReason.NOT_FOUND;
+            e.printStackTrace();
+        } catch ( MalformedURLException e ) {
+            mFailureReason = FailureReason.NOT_FOUND;
+            e.printStackTrace();
+        } catch ( SocketTimeoutException e ) {
+            mFailureReason = FailureReason.TRANSIENT;
+            mCongested = true;
+            e.printStackTrace();
+        } catch ( IOException e ) {
+            mFailureReason = FailureReason.TRANSIENT;
+            e.printStackTrace();
+        }
+
+        return in;
+    }
+
+    private InputStream openHttpStream(String url, boolean resume) throws IOException {
+        HttpTransport.Response response = sTransport.open(url, mTimeout);
+        mResponse = response;
+        if (mCancelled) {
+            // Cancelled before the connection could be disconnected
+            disconnect();
+            return null;
+        }
+        String cacheKey = ImageCache.getCacheKey(url);
+        PartialDownload partial = resume ? mResumeCache.getPartialDownload(cacheKey) : null;
+        boolean resumed = false;
+        try {
+            if (partial != null) {
+                response.setRequestHeader("Range", "bytes=" + partial.getLength() + "-");
+                response.setRequestHeader("If-Range", partial.getValidator());
+            }
+            int responseCode = response.getResponseCode();
+            if (partial != null && responseCode == HttpURLConnection.HTTP_PARTIAL && continues(response, partial)) {
+                ShutterbugMetrics metrics = ShutterbugMetrics.getSharedMetrics();
+                metrics.increment(ShutterbugMetrics.DOWNLOADS_RESUMED);
+                metrics.add(ShutterbugMetrics.DOWNLOADS_RESUMED_BYTES, partial.getLength());
+                mValidator = partial.getValidator();
+                mContentLength = partial.getTotalLength();
+                resumed = true;
+                return new SequenceInputStream(partial.getInputStream(), response.getBody());
+            }
+            if (partial != null && (responseCode == HttpURLConnection.HTTP_OK
+                    || responseCode == HttpURLConnection.HTTP_PARTIAL || responseCode == HTTP_RANGE_NOT_SATISFIABLE)) {
+                // The image changed, or the server cannot serve the rest of it
+                partial.close();
+                partial = null;
+                mResumeCache.removePartialDownload(cacheKey);
+                if (responseCode != HttpURLConnection.HTTP_OK) {
+                    disconnect();
+                    return openHttpStream(url, false);
+                }
+            }
+            if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                mFailureReason = FailureReason.forResponseCode(responseCode);
+                mCongested = responseCode == HTTP_TOO_MANY_REQUESTS
+                        || responseCode == HttpURLConnection.HTTP_UNAVAILABLE;
+                response.release();
+                return null;
+            }
+            mValidator = getValidator(response);
+            mContentLength = response.getContentLength();
+            return response.getBody();
+        } finally {
+            if (partial != null && !resumed) {
+                partial.close();
+            }
+        }
+    }
 
-        }.executeOnExecutor(sDownloadExecutor);
+    /**
+     * Returns true if a 206 response carries the rest of {@code partial}.
+     */
+    private static boolean continues(HttpTransport.Response response, PartialDownload partial) {
+        // Content-Range: bytes <first>-<last>/<length>
+        String contentRange = response.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return false;
+        }
+        int dash = contentRange.indexOf('-');
+        int slash = contentRange.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return false;
+        }
+        try {
+            long first = Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+            long length = Long.parseLong(contentRange.substring(slash + 1).trim());
+            return first == partial.getLength() && length == partial.getTotalLength();
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
 
+    /**
+     * Returns the validator to resume the response with: its ETag unless it
+     * is weak, which If-Range does not accept, or its Last-Modified date.
+     */
+    private static String getValidator(HttpTransport.Response response) {
+        if ("none".equalsIgnoreCase(response.getHeaderField("Accept-Ranges"))) {
+            return null;
+        }
+        String eTag = response.getHeaderField("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+        return response.getHeaderField("Last-Modified");
     }
 
+    /**
+     * Cancels the download. A connection being established or read, even by
+     * the consumer of the stream this downloader opened, is disconnected so
+     * that blocked reads fail right away.
+     */
     @Override
     public void cancel() {
+        mCancelled = true;
+        HostPermit permit = mPermit;
+        if (permit != null && permit.mHost != null && !permit.mLimiter.cancel(permit.mHost, this)) {
+            permit.release(Outcome.FAILED, 0, 0);
+        }
         if (mCurrentTask != null) {
             mCurrentTask.cancel(true);
+            getDownloadExecutor().cancel(this);
+        }
+        if (mResponse != null) {
+            // Closing the socket may block, keep it off the calling thread
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    disconnect();
+                }
+            });
+        }
+    }
+
+    private void disconnect() {
+        HttpTransport.Response response = mResponse;
+        mResponse = null;
+        if (response != null) {
+            response.disconnect();
+        }
+    }
+
+    /**
+     * Installs the transport opening the connections of all downloaders.
+     */
+    public static void setTransport(HttpTransport transport) {
+        sTransport = transport;
+    }
+
+    public static HttpTransport getTransport() {
+        return sTransport;
+    }
+
+    /**
+     * Installs the limiter of the downloads running at once per host. By
+     * default each host starts with 4 downloads, adapted between 1 and 8.
+     */
+    public static void setHostLimiter(HostConcurrencyLimiter limiter) {
+        sHostLimiter = limiter;
+    }
+
+    public static HostConcurrencyLimiter getHostLimiter() {
+        return sHostLimiter;
+    }
+
+    /**
+     * Returns the host whose limit applies to {@code url}, or null for local
+     * files.
+     */
+    private static String getHost(String url) {
+        if (url.startsWith(File.separator)) {
+            return null;
+        }
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Lets this downloader resume from the bytes an interrupted download left
+     * in {@code imageCache}, when the server supports range requests.
+     */
+    public void setResumeCache(ImageCache imageCache) {
+        mResumeCache = imageCache;
+    }
+
+    /**
+     * Sets the connect and read timeouts, 30 seconds by default.
+     */
+    public void setTimeout(int timeoutMillis) {
+        mTimeout = timeoutMillis;
+    }
+
+    @Override
+    public long getContentLength() {
+        return mContentLength;
+    }
+
+    @Override
+    public String getValidator() {
+        return mValidator;
+    }
+
+    @Override
+    public StageTimings getStageTimings() {
+        return mStageTimings;
+    }
+
+    @Override
+    public void setPriority(Priority priority) {
+        HostPermit permit = mPermit;
+        if (permit != null && permit.mHost != null) {
+            permit.mLimiter.setPriority(permit.mHost, this, priority);
+        }
+        getDownloadExecutor().setPriority(this, priority);
+    }
+
+    @Override
+    public FailureReason getFailureReason() {
+        return mFailureReason;
+    }
+
+    /**
+     * The slot a download holds in the limit of its host, from the start of
+     * its task until its stream is closed. Released once, whichever of the
+     * failure, the stream or a cancellation comes first.
+     */
+    private static class HostPermit {
+        final String                 mHost;
+        final HostConcurrencyLimiter mLimiter  = sHostLimiter;
+        final AtomicBoolean          mReleased = new AtomicBoolean();
+        volatile boolean             mAcquired;
+
+        HostPermit(String host) {
+            mHost = host;
+        }
+
+        void release(Outcome outcome, long bytes, long nanos) {
+            if (mHost != null && mAcquired && mReleased.compareAndSet(false, true)) {
+                mLimiter.release(mHost, outcome, bytes, nanos);
+            }
+        }
+    }
+
+    /**
+     * Releases the permit of the download when the body is closed, reporting
+     * how fast it was read, or whether a read timed out.
+     */
+    private static class PermitInputStream extends FilterInputStream {
+        private final HostPermit mPermit;
+        // Set on the first read, the stream may wait in the disk queue before
+        private long             mStart;
+        private long             mBytes;
+        private long             mEnd;
+        private boolean          mTimedOut;
+
+        PermitInputStream(InputStream in, HostPermit permit) {
+            super(in);
+            mPermit = permit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            onReadStart();
+            try {
+                int b = super.read();
+                onRead(b == -1 ? -1 : 1);
+                return b;
+            } catch (SocketTimeoutException e) {
+                mTimedOut = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            onReadStart();
+            try {
+                int read = super.read(buffer, offset, count);
+                onRead(read);
+                return read;
+            } catch (SocketTimeoutException e) {
+                mTimedOut = true;
+                throw e;
+            }
+        }
+
+        private void onReadStart() {
+            if (mStart == 0) {
+                mStart = System.nanoTime();
+            }
+        }
+
+        private void onRead(int count) {
+            if (count != -1) {
+                mBytes += count;
+            } else if (mEnd == 0) {
+                mEnd = System.nanoTime();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (mEnd != 0) {
+                    mPermit.release(Outcome.SUCCESS, mBytes, mEnd - mStart);
+                } else {
+                    mPermit.release(mTimedOut ? Outcome.CONGESTED : Outcome.FAILED, 0, 0);
+                }
+            }
         }
     }
 }
@@ -0,0 +1,133 @@
+package com.applidium.shutterbug.downloader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+
+import android.os.AsyncTask;
+
+import com.applidium.shutterbug.metrics.ShutterbugMetrics;
+import com.applidium.shutterbug.metrics.Stage;
+import com.applidium.shutterbug.metrics.StageTimings;
+import com.applidium.shutterbug.utils.DownloadRequest;
+import com.applidium.shutterbug.utils.FailureReason;
+import com.applidium.shutterbug.utils.Priority;
+import com.applidium.shutterbug.utils.ShutterbugExecutors;
+import com.techsmith.utilities.IO;
+
+/**
+ * Opens images given by an absolute path, on the disk pool. The stream is a
+ * {@link FileInputStream}, so that it can be read at random and decoded from
+ * its file descriptor without opening the file again.
+ */
+public class ShutterbugFileOpener implements ShutterbugStreamOpener {
+    private ShutterbugOnOpenedListener         mListener;
+    private DownloadRequest                    mDownloadRequest;
+    private AsyncTask<Void, Void, InputStream> mCurrentTask;
+    private StageTimings                       mStageTimings;
+    private volatile FailureReason             mFailureReason = FailureReason.NOT_FOUND;
+    private volatile long                      mContentLength = -1;
+
+    public ShutterbugFileOpener(ShutterbugOnOpenedListener listener, DownloadRequest downloadRequest) {
+        mListener = listener;
+        mDownloadRequest = downloadRequest;
+    }
+
+    @Override
+    public void start() {
+        if (mStageTimings == null) {
+            mStageTimings = StageTimings.createIfListening();
+        }
+        mFailureReason = FailureReason.NOT_FOUND;
+        final long queuedAt = System.nanoTime();
+        mCurrentTask = new AsyncTask<Void, Void, InputStream>() {
+
+            @Override
+            protected InputStream doInBackground(Void... params) {
+                ShutterbugMetrics.getSharedMetrics().recordSince(Stage.QUEUE_WAIT, queuedAt, mStageTimings);
+                return openStream();
+            }
+
+            @Override
+            protected void onCancelled(InputStream inputStream) {
+                IO.closeQuietly(inputStream);
+            }
+
+            @Override
+            protected void onPostExecute(InputStream inputStream) {
+                if (isCancelled()) {
+                    IO.closeQuietly(inputStream);
+                    inputStream = null;
+                }
+
+                if (inputStream != null) {
+                    mListener.onImageOpenSuccess(ShutterbugFileOpener.this, inputStream, mDownloadRequest);
+                } else {
+                    mListener.onImageOpenFailure(ShutterbugFileOpener.this, mDownloadRequest);
+                }
+            }
+        };
+
+        mCurrentTask.executeOnExecutor(ShutterbugExecutors.getShared().getDiskExecutor().withPriority(mDownloadRequest.getPriority(), this, new Runnable() {
+            @Override
+            public void run() {
+                mFailureReason = FailureReason.DROPPED;
+                mListener.onImageOpenFailure(ShutterbugFileOpener.this, mDownloadRequest);
+            }
+        }));
+    }
+
+    @Override
+    public InputStream openStream() {
+        mContentLength = -1;
+        try {
+            File file = new File(mDownloadRequest.getUrl());
+            FileInputStream in = new FileInputStream(file);
+            mContentLength = file.length();
+            return in;
+        } catch (FileNotFoundException e) {
+            mFailureReason = FailureReason.NOT_FOUND;
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    @Override
+    public void cancel() {
+        if (mCurrentTask != null) {
+            mCurrentTask.cancel(true);
+            ShutterbugExecutors.getShared().getDiskExecutor().cancel(this);
+        }
+    }
+
+    @Override
+    public void setPriority(Priority priority) {
+        ShutterbugExecutors.getShared().getDiskExecutor().setPriority(this, priority);
+    }
+
+    @Override
+    public long getContentLength() {
+        return mContentLength;
+    }
+
+    @Override
+    public String getValidator() {
+        return null;
+    }
+
+    @Override
+    public StageTimings getStageTimings() {
+        return mStageTimings;
+    }
+
+    @Override
+    public FailureReason getFailureReason() {
+        return mFailureReason;
+    }
+
+    @Override
+    public String getResourceUrl() {
+        return mDownloadRequest.getUrl();
+    }
+}
@@ -2,7 +2,10 @@ package com.applidium.shutterbug.downloader;
 
 import java.io.InputStream;
 
+import com.applidium.shutterbug.metrics.StageTimings;
 import com.applidium.shutterbug.utils.DownloadRequest;
+import com.applidium.shutterbug.utils.FailureReason;
+import com.applidium.shutterbug.utils.Priority;
 
 public interface ShutterbugStreamOpener {
     public interface ShutterbugOnOpenedListener {
@@ -13,4 +16,39 @@ public interface ShutterbugStreamOpener {
     void start();
     void cancel();
     String getResourceUrl();
+
+    /**
+     * Opens the image on the calling thread, without notifying the listener.
+     * 
+     * @return the stream, or null if it could not be opened; see
+     *         {@link #getFailureReason()}
+     */
+    InputStream openStream();
+
+    /**
+     * Changes the priority of this opener if it has not started running yet.
+     */
+    void setPriority(Priority priority);
+
+    /**
+     * Returns why the last attempt to open the image failed.
+     */
+    FailureReason getFailureReason();
+
+    /**
+     * Returns the length of the opened stream, or -1 if it is unknown.
+     */
+    long getContentLength();
+
+    /**
+     * Returns the ETag or Last-Modified date with which an interrupted copy of
+     * the opened stream can be resumed, or null if it cannot be.
+     */
+    String getValidator();
+
+    /**
+     * Returns the stages this opener went through, shared by all the requests
+     * of its download, or null if no request event listener is installed.
+     */
+    StageTimings getStageTimings();
 }
@@ -0,0 +1,158 @@
+package com.applidium.shutterbug.downloader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import com.applidium.shutterbug.metrics.ShutterbugMetrics;
+import com.techsmith.utilities.IO;
+
+/**
+ * An {@link HttpTransport} over {@link HttpURLConnection}, whose connection
+ * pool keeps connections alive between requests to the same host.
+ * <p>
+ * That pool only takes a connection back once its response has been read to
+ * the end and closed, which this transport makes sure of, draining short error
+ * bodies instead of disconnecting. The pool itself is not observable: the
+ * transport counts the connections it handed back to it, not the ones it
+ * reused.
+ */
+public class UrlConnectionTransport implements HttpTransport {
+    // Error bodies longer than this are not worth reading to keep the connection
+    private static final int                MAX_DRAIN_BYTES           = 16 * 1024;
+
+    private final ShutterbugMetrics         mMetrics                  = ShutterbugMetrics.getSharedMetrics();
+
+    /**
+     * Keeps up to {@code maxIdlePerHost} idle connections per host alive for
+     * {@code keepAliveMillis}. These are system properties: they apply to every
+     * {@link HttpURLConnection} of the process, not only to this transport, and
+     * only to the connections opened after this call. The platform defaults
+     * apply until it is called.
+     */
+    public static void setConnectionPool(int maxIdlePerHost, long keepAliveMillis) {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(maxIdlePerHost));
+        System.setProperty("http.keepAliveDuration", String.valueOf(keepAliveMillis));
+    }
+
+    @Override
+    public Response open(String url, int timeoutMillis) throws IOException {
+        URL imageUrl = new URL(url);
+        HttpURLConnection connection = (HttpURLConnection) imageUrl.openConnection();
+        connection.setConnectTimeout(timeoutMillis);
+        connection.setReadTimeout(timeoutMillis);
+        connection.setInstanceFollowRedirects(true);
+        return new UrlConnectionResponse(connection);
+    }
+
+    private void onConnectionReleased() {
+        mMetrics.increment(ShutterbugMetrics.HTTP_CONNECTIONS_RELEASED);
+    }
+
+    private class UrlConnectionResponse implements Response {
+        private final HttpURLConnection mConnection;
+        private boolean                 mRequested;
+
+        UrlConnectionResponse(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void setRequestHeader(String name, String value) {
+            mConnection.setRequestProperty(name, value);
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            if (!mRequested) {
+                mRequested = true;
+                mMetrics.increment(ShutterbugMetrics.HTTP_REQUESTS);
+            }
+            return mConnection.getResponseCode();
+        }
+
+        @Override
+        public long getContentLength() {
+            return mConnection.getContentLength();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return new ReleasingInputStream(mConnection.getInputStream());
+        }
+
+        @Override
+        public void release() {
+            InputStream errorStream = mConnection.getErrorStream();
+            if (errorStream == null) {
+                return;
+            }
+            try {
+                byte[] buffer = new byte[1024];
+                int drained = 0;
+                int count;
+                while ((count = errorStream.read(buffer)) != -1) {
+                    drained += count;
+                    if (drained > MAX_DRAIN_BYTES) {
+                        mConnection.disconnect();
+                        return;
+                    }
+                }
+                onConnectionReleased();
+            } catch (IOException e) {
+                mConnection.disconnect();
+            } finally {
+                IO.closeQuietly( errorStream );
+            }
+        }
+
+        @Override
+        public void disconnect() {
+            mConnection.disconnect();
+        }
+    }
+
+    /**
+     * Notes the connection as returned to the pool when the body is closed
+     * after being read to the end.
+     */
+    private class ReleasingInputStream extends FilterInputStream {
+        private boolean mExhausted;
+        private boolean mClosed;
+
+        ReleasingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            mExhausted |= b == -1;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            mExhausted |= read == -1;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (mExhausted && !mClosed) {
+                onConnectionReleased();
+            }
+            mClosed = true;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.applidium.shutterbug.metrics;
+
+import java.util.Locale;
+
+/**
+ * A fixed-bucket histogram of latencies in milliseconds. Buckets grow roughly
+ * exponentially so that percentiles are accurate to within a bucket over the
+ * whole range of latencies the image pipeline sees, from sub-millisecond
+ * memory hits to multi-second downloads.
+ */
+public class LatencyHistogram {
+    private static final long[] BUCKET_UPPER_BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000 };
+
+    private final long[]        counts              = new long[BUCKET_UPPER_BOUNDS.length + 1];
+    private long                count;
+    private long                sum;
+    private long                max;
+
+    public synchronized void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        int bucket = 0;
+        while (bucket < BUCKET_UPPER_BOUNDS.length && millis > BUCKET_UPPER_BOUNDS[bucket]) {
+            bucket++;
+        }
+        counts[bucket]++;
+        count++;
+        sum += millis;
+        if (millis > max) {
+            max = millis;
+        }
+    }
+
+    public synchronized long count() {
+        return count;
+    }
+
+    public synchronized long max() {
+        return max;
+    }
+
+    public synchronized long mean() {
+        return count != 0 ? sum / count : 0;
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, or
+     * the maximum recorded latency if that is smaller.
+     * 
+     * @param percentile
+     *            between 0 and 100
+     */
+    public synchronized long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100d);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_UPPER_BOUNDS.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank && seen > 0) {
+                return Math.min(BUCKET_UPPER_BOUNDS[bucket], max);
+            }
+        }
+        return max;
+    }
+
+    public synchronized void reset() {
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            counts[bucket] = 0;
+        }
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    public synchronized LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        System.arraycopy(counts, 0, copy.counts, 0, counts.length);
+        copy.count = count;
+        copy.sum = sum;
+        copy.max = max;
+        return copy;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.getDefault(), "LatencyHistogram[count=%d,mean=%dms,p50=%dms,p90=%dms,p99=%dms,max=%dms]", count, mean(),
+                percentile(50), percentile(90), percentile(99), max);
+    }
+}
@@ -0,0 +1,100 @@
+package com.applidium.shutterbug.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable copy of the values of {@link ShutterbugMetrics} at a given
+ * time.
+ */
+public class MetricsSnapshot {
+    private final long                         mSince;
+    private final long                         mTime;
+    private final Map<String, Long>            mCounters   = new TreeMap<String, Long>();
+    private final Map<String, Long>            mGauges     = new TreeMap<String, Long>();
+    private final Map<Stage, LatencyHistogram> mHistograms = new TreeMap<Stage, LatencyHistogram>();
+
+    MetricsSnapshot(long since, long time) {
+        mSince = since;
+        mTime = time;
+    }
+
+    void putCounter(String name, long value) {
+        mCounters.put(name, value);
+    }
+
+    void putGauge(String name, long value) {
+        mGauges.put(name, value);
+    }
+
+    void putHistogram(Stage stage, LatencyHistogram histogram) {
+        mHistograms.put(stage, histogram);
+    }
+
+    /**
+     * Returns the time, in milliseconds since the epoch, of the last reset of
+     * the counters.
+     */
+    public long getSince() {
+        return mSince;
+    }
+
+    /**
+     * Returns the time, in milliseconds since the epoch, this snapshot was
+     * taken.
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    public long getCounter(String name) {
+        Long value = mCounters.get(name);
+        return value != null ? value : 0;
+    }
+
+    public long getGauge(String name) {
+        Long value = mGauges.get(name);
+        return value != null ? value : 0;
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        LatencyHistogram histogram = mHistograms.get(stage);
+        return histogram != null ? histogram : new LatencyHistogram();
+    }
+
+    /**
+     * Returns {@code hits / (hits + misses)} for the given counters, or 0 if
+     * neither was incremented.
+     */
+    public double getRatio(String hitCounter, String missCounter) {
+        long hits = getCounter(hitCounter);
+        long total = hits + getCounter(missCounter);
+        return total != 0 ? (double) hits / total : 0;
+    }
+
+    public double getMemoryHitRate() {
+        return getRatio(ShutterbugMetrics.MEMORY_HITS, ShutterbugMetrics.MEMORY_MISSES);
+    }
+
+    public double getDiskHitRate() {
+        return getRatio(ShutterbugMetrics.DISK_HITS, ShutterbugMetrics.DISK_MISSES);
+    }
+
+    public Map<String, Long> getCounters() {
+        return Collections.unmodifiableMap(mCounters);
+    }
+
+    public Map<String, Long> getGauges() {
+        return Collections.unmodifiableMap(mGauges);
+    }
+
+    public Map<Stage, LatencyHistogram> getHistograms() {
+        return Collections.unmodifiableMap(mHistograms);
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot[counters=" + mCounters + ",gauges=" + mGauges + ",latencies=" + mHistograms + "]";
+    }
+}
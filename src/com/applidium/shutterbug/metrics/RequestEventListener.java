@@ -0,0 +1,26 @@
+package com.applidium.shutterbug.metrics;
+
+/**
+ * Notified of the progress of every request, to find out where the time of
+ * slow image loads went. Install one with
+ * {@link ShutterbugMetrics#setRequestEventListener}. Timestamps are
+ * {@link System#nanoTime()} values. Stages shared by several requests, such as
+ * the download of a url requested twice, are reported to each of them. Stages
+ * are reported on the main thread when the request finishes, before the
+ * {@link Stage#DELIVERY} stage.
+ */
+public interface RequestEventListener {
+    public enum Outcome {
+        MEMORY_HIT,
+        DISK_HIT,
+        DOWNLOADED,
+        FAILED,
+        CANCELLED
+    }
+
+    void onRequestStarted(long requestId, String url, long timeNanos);
+
+    void onStage(long requestId, Stage stage, long startNanos, long endNanos);
+
+    void onRequestFinished(long requestId, Outcome outcome, long timeNanos);
+}
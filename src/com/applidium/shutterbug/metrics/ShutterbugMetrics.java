@@ -0,0 +1,217 @@
+package com.applidium.shutterbug.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the counters, gauges and latency histograms of the whole image
+ * pipeline. Components record into the shared instance; callers usually read
+ * it through {@code ShutterbugManager#getMetricsSnapshot()}.
+ * <p>
+ * Three kinds of values are tracked:
+ * <ul>
+ * <li><strong>counters</strong>, incremented by the pipeline or read from a
+ * monotonic {@link Gauge} registered with {@link #registerCounter}. Counters
+ * start again from zero after {@link #reset}.
+ * <li><strong>gauges</strong>, instantaneous values such as bytes in use or
+ * queue depths, read when a snapshot is taken.
+ * <li><strong>latency histograms</strong>, one per {@link Stage}.
+ * </ul>
+ */
+public class ShutterbugMetrics {
+    public interface Gauge {
+        long getValue();
+    }
+
+    // Memory cache
+    public static final String              MEMORY_HITS               = "memory.hits";
+    public static final String              MEMORY_MISSES             = "memory.misses";
+    public static final String              MEMORY_SECOND_CHANCE_HITS = "memory.second_chance_hits";
+    public static final String              MEMORY_EVICTIONS          = "memory.evictions";
+    public static final String              MEMORY_BYTES              = "memory.bytes";
+    public static final String              MEMORY_MAX_BYTES          = "memory.max_bytes";
+    public static final String              MEMORY_BUDGET_GROWTHS     = "memory.budget_growths";
+    public static final String              MEMORY_BUDGET_SHRINKS     = "memory.budget_shrinks";
+
+    // Encoded bytes cache
+    public static final String              ENCODED_HITS              = "encoded.hits";
+    public static final String              ENCODED_MISSES            = "encoded.misses";
+    public static final String              ENCODED_BYTES             = "encoded.bytes";
+
+    // Disk cache
+    public static final String              DISK_HITS                 = "disk.hits";
+    public static final String              DISK_MISSES               = "disk.misses";
+    public static final String              DISK_EVICTIONS            = "disk.evictions";
+    public static final String              DISK_BYTES                = "disk.bytes";
+    public static final String              DISK_BYTES_WRITTEN        = "disk.bytes_written";
+    public static final String              DISK_COALESCED_QUERIES    = "disk.coalesced_queries";
+    public static final String              DISK_MAX_BYTES            = "disk.max_bytes";
+    public static final String              DISK_JOURNAL_REDUNDANT_OPS = "disk.journal_redundant_ops";
+
+    // Downloads
+    public static final String              DOWNLOADS_STARTED         = "downloads.started";
+    public static final String              DOWNLOADS_COALESCED       = "downloads.coalesced";
+    public static final String              DOWNLOADS_SUCCEEDED       = "downloads.succeeded";
+    public static final String              DOWNLOADS_FAILED          = "downloads.failed";
+    public static final String              DOWNLOADS_IN_FLIGHT       = "downloads.in_flight";
+    public static final String              DOWNLOADS_RETRIED         = "downloads.retried";
+    public static final String              DOWNLOADS_NEGATIVE_HITS   = "downloads.negative_cache_hits";
+    public static final String              DOWNLOADS_RESUMED         = "downloads.resumed";
+    public static final String              DOWNLOADS_RESUMED_BYTES   = "downloads.resumed_bytes";
+
+    // Decodes
+    public static final String              DECODE_EXIF_THUMBNAILS    = "decode.exif_thumbnails";
+
+    // HTTP transport
+    public static final String              HTTP_REQUESTS             = "http.requests";
+    public static final String              HTTP_CONNECTIONS_RELEASED = "http.connections_released";
+    // Per-host concurrency, see HostConcurrencyLimiter; limits are reported as "http.limit.<host>"
+    public static final String              HTTP_LIMIT_PREFIX         = "http.limit.";
+    public static final String              HTTP_LIMIT_INCREASES      = "http.limit_increases";
+    public static final String              HTTP_LIMIT_DECREASES      = "http.limit_decreases";
+    public static final String              HTTP_WAITING_DOWNLOADS    = "http.waiting_downloads";
+
+    // Queues
+    public static final String              QUEUE_CACHE_QUERIES       = "queue.cache_queries";
+    public static final String              QUEUE_DISK_DECODES        = "queue.disk_decodes";
+    public static final String              QUEUE_DOWNLOAD_LISTENERS  = "queue.download_listeners";
+
+    // Thread pools, see PriorityExecutor#registerMetrics for their queue and pool metrics
+    public static final String              POOL_NETWORK              = "network";
+    public static final String              POOL_DISK                 = "disk";
+    public static final String              POOL_DECODE               = "decode";
+    public static final String              POOL_SCALE                = "scale";
+
+    private static final ShutterbugMetrics  sMetrics                  = new ShutterbugMetrics();
+
+    private final Map<String, AtomicLong>   mCounters                 = new ConcurrentHashMap<String, AtomicLong>();
+    private final Map<String, Gauge>        mCounterSources           = new ConcurrentHashMap<String, Gauge>();
+    private final Map<String, AtomicLong>   mCounterBaselines         = new ConcurrentHashMap<String, AtomicLong>();
+    private final Map<String, Gauge>        mGauges                   = new ConcurrentHashMap<String, Gauge>();
+    private final Map<Stage, LatencyHistogram> mHistograms            = new ConcurrentHashMap<Stage, LatencyHistogram>();
+    private volatile long                   mResetTime                = System.currentTimeMillis();
+    private volatile RequestEventListener   mRequestEventListener;
+
+    ShutterbugMetrics() {
+        for (Stage stage : Stage.values()) {
+            mHistograms.put(stage, new LatencyHistogram());
+        }
+    }
+
+    public static ShutterbugMetrics getSharedMetrics() {
+        return sMetrics;
+    }
+
+    public void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public void add(String counter, long delta) {
+        AtomicLong value = mCounters.get(counter);
+        if (value == null) {
+            synchronized (mCounters) {
+                value = mCounters.get(counter);
+                if (value == null) {
+                    value = new AtomicLong();
+                    mCounters.put(counter, value);
+                }
+            }
+        }
+        value.addAndGet(delta);
+    }
+
+    /**
+     * Registers a counter maintained elsewhere. {@code source} must be
+     * monotonic; the reported value is relative to its value at the last
+     * {@link #reset}.
+     */
+    public void registerCounter(String counter, Gauge source) {
+        mCounterSources.put(counter, source);
+        mCounterBaselines.put(counter, new AtomicLong(source.getValue()));
+    }
+
+    /**
+     * Registers an instantaneous value, read each time a snapshot is taken.
+     * Replaces any gauge previously registered under the same name.
+     */
+    public void registerGauge(String gauge, Gauge source) {
+        mGauges.put(gauge, source);
+    }
+
+    public void unregisterGauge(String gauge) {
+        mGauges.remove(gauge);
+    }
+
+    public void recordLatency(Stage stage, long millis) {
+        mHistograms.get(stage).record(millis);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, as returned by
+     * {@link System#nanoTime()}.
+     */
+    public void recordSince(Stage stage, long startNanos) {
+        recordLatency(stage, (System.nanoTime() - startNanos) / 1000000L);
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, also into
+     * {@code timings} unless it is null.
+     */
+    public void recordSince(Stage stage, long startNanos, StageTimings timings) {
+        long now = System.nanoTime();
+        recordLatency(stage, (now - startNanos) / 1000000L);
+        if (timings != null) {
+            timings.record(stage, startNanos, now);
+        }
+    }
+
+    /**
+     * Installs a listener notified of the stages of every request, or removes
+     * it if null. Only requests started while a listener is installed are
+     * tracked, at no cost for the others.
+     */
+    public void setRequestEventListener(RequestEventListener listener) {
+        mRequestEventListener = listener;
+    }
+
+    public RequestEventListener getRequestEventListener() {
+        return mRequestEventListener;
+    }
+
+    public MetricsSnapshot snapshot() {
+        MetricsSnapshot snapshot = new MetricsSnapshot(mResetTime, System.currentTimeMillis());
+        for (Map.Entry<String, AtomicLong> counter : mCounters.entrySet()) {
+            snapshot.putCounter(counter.getKey(), counter.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> counter : mCounterSources.entrySet()) {
+            AtomicLong baseline = mCounterBaselines.get(counter.getKey());
+            snapshot.putCounter(counter.getKey(), counter.getValue().getValue() - (baseline != null ? baseline.get() : 0));
+        }
+        for (Map.Entry<String, Gauge> gauge : mGauges.entrySet()) {
+            snapshot.putGauge(gauge.getKey(), gauge.getValue().getValue());
+        }
+        for (Map.Entry<Stage, LatencyHistogram> histogram : mHistograms.entrySet()) {
+            snapshot.putHistogram(histogram.getKey(), histogram.getValue().copy());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Sets all counters back to zero and clears the latency histograms. Gauges
+     * are unaffected.
+     */
+    public void reset() {
+        for (AtomicLong counter : mCounters.values()) {
+            counter.set(0);
+        }
+        for (Map.Entry<String, Gauge> counter : mCounterSources.entrySet()) {
+            mCounterBaselines.put(counter.getKey(), new AtomicLong(counter.getValue().getValue()));
+        }
+        for (LatencyHistogram histogram : mHistograms.values()) {
+            histogram.reset();
+        }
+        mResetTime = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,29 @@
+package com.applidium.shutterbug.metrics;
+
+/**
+ * The stages of the image pipeline whose latency is tracked by
+ * {@link ShutterbugMetrics}.
+ */
+public enum Stage {
+    /** From the request to the result of the memory cache lookup. */
+    CACHE_QUERY,
+    /** Time spent waiting in an executor queue before running. */
+    QUEUE_WAIT,
+    /** Disk cache lookup, up to an open snapshot. */
+    DISK_READ,
+    /** Opening a remote or local stream: connection and time to first byte. */
+    NETWORK,
+    /**
+     * Time spent blocked reading the body of an opened stream, which happens
+     * while it is copied to disk and so overlaps {@link #DISK_WRITE}.
+     */
+    TRANSFER,
+    /** Copying an opened stream into the disk cache. */
+    DISK_WRITE,
+    /** Bitmap decoding. */
+    DECODE,
+    /** Scaling a decoded bitmap to the sizes requested. */
+    SCALE,
+    /** Notifying the listener of a request. */
+    DELIVERY
+}
@@ -0,0 +1,99 @@
+package com.applidium.shutterbug.metrics;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A {@link RequestEventListener} aggregating the latencies reported for each
+ * stage, and the total latency of requests by outcome, into histograms.
+ */
+public class StageLatencyAggregator implements RequestEventListener {
+    private final Map<Stage, LatencyHistogram>   mStageHistograms   = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+    private final Map<Outcome, LatencyHistogram> mTotalHistograms   = new EnumMap<Outcome, LatencyHistogram>(Outcome.class);
+    private final Map<Long, Long>                mStartTimes        = new HashMap<Long, Long>();
+
+    public StageLatencyAggregator() {
+        for (Stage stage : Stage.values()) {
+            mStageHistograms.put(stage, new LatencyHistogram());
+        }
+        for (Outcome outcome : Outcome.values()) {
+            mTotalHistograms.put(outcome, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public synchronized void onRequestStarted(long requestId, String url, long timeNanos) {
+        mStartTimes.put(requestId, timeNanos);
+    }
+
+    @Override
+    public void onStage(long requestId, Stage stage, long startNanos, long endNanos) {
+        mStageHistograms.get(stage).record((endNanos - startNanos) / 1000000L);
+    }
+
+    @Override
+    public void onRequestFinished(long requestId, Outcome outcome, long timeNanos) {
+        Long startTime;
+        synchronized (this) {
+            startTime = mStartTimes.remove(requestId);
+        }
+        if (startTime != null) {
+            mTotalHistograms.get(outcome).record((timeNanos - startTime) / 1000000L);
+        }
+    }
+
+    /**
+     * Returns a copy of the histogram of the latencies of {@code stage}.
+     */
+    public LatencyHistogram getHistogram(Stage stage) {
+        return mStageHistograms.get(stage).copy();
+    }
+
+    /**
+     * Returns a copy of the histogram of the total latencies, from the
+     * request to its end, of the requests that finished with {@code outcome}.
+     */
+    public LatencyHistogram getTotalHistogram(Outcome outcome) {
+        return mTotalHistograms.get(outcome).copy();
+    }
+
+    /**
+     * Returns the given percentile, between 0 and 100, of the latencies of
+     * {@code stage}, in milliseconds.
+     */
+    public long getPercentile(Stage stage, double percentile) {
+        return mStageHistograms.get(stage).percentile(percentile);
+    }
+
+    public synchronized void reset() {
+        for (LatencyHistogram histogram : mStageHistograms.values()) {
+            histogram.reset();
+        }
+        for (LatencyHistogram histogram : mTotalHistograms.values()) {
+            histogram.reset();
+        }
+        mStartTimes.clear();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("StageLatencyAggregator[");
+        for (Map.Entry<Stage, LatencyHistogram> entry : mStageHistograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.count() > 0) {
+                builder.append(String.format(Locale.US, "\n  %s: p50=%dms p90=%dms p99=%dms n=%d", entry.getKey(),
+                        histogram.percentile(50), histogram.percentile(90), histogram.percentile(99), histogram.count()));
+            }
+        }
+        for (Map.Entry<Outcome, LatencyHistogram> entry : mTotalHistograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            if (histogram.count() > 0) {
+                builder.append(String.format(Locale.US, "\n  total %s: p50=%dms p90=%dms p99=%dms n=%d", entry.getKey(),
+                        histogram.percentile(50), histogram.percentile(90), histogram.percentile(99), histogram.count()));
+            }
+        }
+        return builder.append("]").toString();
+    }
+}
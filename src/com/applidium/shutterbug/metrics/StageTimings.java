@@ -0,0 +1,58 @@
+package com.applidium.shutterbug.metrics;
+
+/**
+ * The stages a request, or a download shared by several requests, went
+ * through, kept until they can be reported to a {@link RequestEventListener}.
+ * Only allocated while a listener is installed.
+ */
+public class StageTimings {
+    private Stage[] mStages = new Stage[8];
+    private long[]  mStarts = new long[8];
+    private long[]  mEnds   = new long[8];
+    private int     mCount;
+
+    /**
+     * Returns new timings if a request event listener is installed, or null so
+     * that nothing is tracked otherwise.
+     */
+    public static StageTimings createIfListening() {
+        return ShutterbugMetrics.getSharedMetrics().getRequestEventListener() != null ? new StageTimings() : null;
+    }
+
+    public synchronized void record(Stage stage, long startNanos, long endNanos) {
+        if (mCount == mStages.length) {
+            int capacity = mCount * 2;
+            Stage[] stages = new Stage[capacity];
+            long[] starts = new long[capacity];
+            long[] ends = new long[capacity];
+            System.arraycopy(mStages, 0, stages, 0, mCount);
+            System.arraycopy(mStarts, 0, starts, 0, mCount);
+            System.arraycopy(mEnds, 0, ends, 0, mCount);
+            mStages = stages;
+            mStarts = starts;
+            mEnds = ends;
+        }
+        mStages[mCount] = stage;
+        mStarts[mCount] = startNanos;
+        mEnds[mCount] = endNanos;
+        mCount++;
+    }
+
+    public synchronized boolean contains(Stage stage) {
+        for (int i = 0; i < mCount; i++) {
+            if (mStages[i] == stage) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reports the recorded stages of request {@code requestId}.
+     */
+    public synchronized void dispatch(RequestEventListener listener, long requestId) {
+        for (int i = 0; i < mCount; i++) {
+            listener.onStage(requestId, mStages[i], mStarts[i], mEnds[i]);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+
+import com.applidium.shutterbug.cache.CacheKey;
+import com.applidium.shutterbug.cache.ImageCache;
+import com.applidium.shutterbug.cache.ImageCache.DiskBatchListener;
+import com.applidium.shutterbug.utils.ShutterbugManager.ShutterbugManagerListener;
+
+/**
+ * A batch of images fetched by {@link ShutterbugManager#fetch(List, int, Priority, BatchListener)}.
+ * Memory hits are resolved in one pass when the batch starts, the remaining
+ * items are looked up on disk in chunks, and the items missing from the disk
+ * are downloaded, a bounded number at a time. Callbacks and counts are only
+ * meant to be used on the main thread.
+ */
+public class BatchFetch implements DiskBatchListener {
+    public static class Item {
+        private final String mUrl;
+        private final int    mWidth;
+        private final int    mHeight;
+
+        /**
+         * @param width
+         *            the width to fetch the image at, or 0 for its full size
+         * @param height
+         *            the height to fetch the image at, or 0 for its full size
+         */
+        public Item(String url, int width, int height) {
+            mUrl = url;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+    }
+
+    public interface BatchListener {
+        void onItemSuccess(BatchFetch batch, int index, Bitmap bitmap);
+
+        void onItemFailure(BatchFetch batch, int index);
+
+        void onBatchProgress(BatchFetch batch, int completedCount, int totalCount);
+
+        void onBatchFinished(BatchFetch batch);
+    }
+
+    private final ShutterbugManager        mManager;
+    private final List<Item>               mItems;
+    private final int                      mMaxConcurrentDownloads;
+    private final Priority                 mPriority;
+    private final BatchListener            mListener;
+    private final boolean[]                mCompleted;
+    private int[]                          mDiskIndices;
+    private final LinkedList<Integer>      mDownloadQueue   = new LinkedList<Integer>();
+    // Requests only keep weak references to their listener
+    private final List<ItemDownload>       mDownloads       = new ArrayList<ItemDownload>();
+    private ImageCache                     mImageCache;
+    private int                            mSucceededCount;
+    private int                            mFailedCount;
+    private boolean                        mCancelled;
+
+    private class ItemDownload implements ShutterbugManagerListener {
+        final int mIndex;
+
+        ItemDownload(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void onImageSuccess(ShutterbugManager imageManager, Bitmap bitmap, String url) {
+            mDownloads.remove(this);
+            onItemCompleted(mIndex, bitmap);
+            startDownloads();
+        }
+
+        @Override
+        public void onImageFailure(ShutterbugManager imageManager, String url) {
+            mDownloads.remove(this);
+            onItemCompleted(mIndex, null);
+            startDownloads();
+        }
+
+        @Override
+        public int getDesiredWidth() {
+            return mItems.get(mIndex).getWidth();
+        }
+
+        @Override
+        public int getDesiredHeight() {
+            return mItems.get(mIndex).getHeight();
+        }
+    }
+
+    BatchFetch(ShutterbugManager manager, List<Item> items, int maxConcurrentDownloads, Priority priority,
+            BatchListener listener) {
+        mManager = manager;
+        mItems = new ArrayList<Item>(items);
+        mMaxConcurrentDownloads = Math.max(1, maxConcurrentDownloads);
+        mPriority = priority;
+        mListener = listener;
+        mCompleted = new boolean[mItems.size()];
+    }
+
+    void start(ImageCache imageCache) {
+        mImageCache = imageCache;
+        List<CacheKey> keys = new ArrayList<CacheKey>(mItems.size());
+        List<Integer> indices = new ArrayList<Integer>(mItems.size());
+        for (int i = 0; i < mItems.size(); i++) {
+            Item item = mItems.get(i);
+            if (item.getUrl() != null) {
+                keys.add(new CacheKey(item.getUrl(), item.getWidth(), item.getHeight()));
+                indices.add(i);
+            }
+        }
+
+        Bitmap[] bitmaps = imageCache.getFromMemory(keys);
+        List<CacheKey> diskKeys = new ArrayList<CacheKey>();
+        mDiskIndices = new int[keys.size()];
+        for (int i = 0; i < bitmaps.length; i++) {
+            if (bitmaps[i] == null) {
+                mDiskIndices[diskKeys.size()] = indices.get(i);
+                diskKeys.add(keys.get(i));
+            }
+        }
+
+        for (int i = 0; i < mItems.size(); i++) {
+            if (mItems.get(i).getUrl() == null) {
+                onItemCompleted(i, null);
+            }
+        }
+        for (int i = 0; i < bitmaps.length; i++) {
+            if (bitmaps[i] != null) {
+                onItemCompleted(indices.get(i), bitmaps[i]);
+            }
+        }
+        if (!diskKeys.isEmpty() && !mCancelled) {
+            imageCache.queryDisk(diskKeys, mPriority, this, this);
+        } else if (mItems.isEmpty()) {
+            mListener.onBatchFinished(this);
+        }
+    }
+
+    @Override
+    public void onDiskItemFound(ImageCache imageCache, int position, Bitmap bitmap) {
+        onItemCompleted(mDiskIndices[position], bitmap);
+    }
+
+    @Override
+    public void onDiskItemNotFound(ImageCache imageCache, int position) {
+        if (mCancelled) {
+            return;
+        }
+        mDownloadQueue.add(mDiskIndices[position]);
+        startDownloads();
+    }
+
+    @Override
+    public void onDiskItemDropped(ImageCache imageCache, int position) {
+        onItemCompleted(mDiskIndices[position], null);
+    }
+
+    private void startDownloads() {
+        while (!mCancelled && mDownloads.size() < mMaxConcurrentDownloads && !mDownloadQueue.isEmpty()) {
+            int index = mDownloadQueue.poll();
+            ItemDownload download = new ItemDownload(index);
+            mDownloads.add(download);
+            mManager.startDownload(new DownloadRequest(mItems.get(index).getUrl(), download, mPriority), download);
+        }
+    }
+
+    private void onItemCompleted(int index, Bitmap bitmap) {
+        if (mCancelled || mCompleted[index]) {
+            return;
+        }
+        mCompleted[index] = true;
+        if (bitmap != null) {
+            mSucceededCount++;
+            mListener.onItemSuccess(this, index, bitmap);
+        } else {
+            mFailedCount++;
+            mListener.onItemFailure(this, index);
+        }
+        mListener.onBatchProgress(this, getCompletedCount(), mItems.size());
+        if (isFinished()) {
+            mListener.onBatchFinished(this);
+        }
+    }
+
+    /**
+     * Cancels the items of this batch that have not completed yet. The
+     * listener is no longer notified.
+     */
+    public void cancel() {
+        if (mCancelled) {
+            return;
+        }
+        mCancelled = true;
+        mDownloadQueue.clear();
+        if (mImageCache != null) {
+            mImageCache.cancelDiskQueries(this);
+        }
+        for (ItemDownload download : new ArrayList<ItemDownload>(mDownloads)) {
+            mManager.cancel(download);
+        }
+        mDownloads.clear();
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public boolean isFinished() {
+        return getCompletedCount() == mItems.size();
+    }
+
+    public List<Item> getItems() {
+        return mItems;
+    }
+
+    public int getCompletedCount() {
+        return mSucceededCount + mFailedCount;
+    }
+
+    public int getSucceededCount() {
+        return mSucceededCount;
+    }
+
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+}
@@ -0,0 +1,11 @@
+package com.applidium.shutterbug.utils;
+
+/**
+ * Cache an image can be prefetched into.
+ */
+public enum CacheTier {
+    /** Downloaded into the disk cache, without being decoded */
+    DISK,
+    /** Downloaded into the disk cache and decoded into the memory cache */
+    MEMORY
+}
@@ -0,0 +1,9 @@
+package com.applidium.shutterbug.utils;
+
+/**
+ * Polled by long running work, such as copying a download to disk, to find
+ * out whether it should stop.
+ */
+public interface CancellationToken {
+    boolean isCancellationRequested();
+}
@@ -0,0 +1,121 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+
+import com.applidium.shutterbug.cache.CacheKey;
+import com.techsmith.utilities.Bitmaps;
+
+/**
+ * Plans a single decode of an image for all the sizes requested for its url.
+ * The image is decoded once with the largest sample size that still covers
+ * every requested size, then each requested variant is derived from that
+ * bitmap by center-cropping it to its size, like
+ * {@link com.applidium.shutterbug.FetchableImageView} crops the images it
+ * scales to the view, which shares the same cache keys.
+ */
+public class DecodePlan {
+    private final String                        mUrl;
+    private final Map<DownloadRequest, CacheKey> mKeys     = new IdentityHashMap<DownloadRequest, CacheKey>();
+    private final Map<CacheKey, Bitmap>         mVariants = new HashMap<CacheKey, Bitmap>();
+    private int                                 mMaxWidth;
+    private int                                 mMaxHeight;
+    private boolean                             mNeedsFullSize;
+    private Bitmap                              mDecodedBitmap;
+
+    public DecodePlan(String url) {
+        mUrl = url;
+    }
+
+    /**
+     * Adds a request for the image scaled to the given size. A width or height
+     * of 0 or less requests the full-size image.
+     */
+    public void addRequest(DownloadRequest request, int width, int height) {
+        CacheKey key = new CacheKey(mUrl, width, height);
+        mKeys.put(request, key);
+        if (key.isFullSize()) {
+            mNeedsFullSize = true;
+        } else {
+            mMaxWidth = Math.max(mMaxWidth, key.getWidth());
+            mMaxHeight = Math.max(mMaxHeight, key.getHeight());
+        }
+    }
+
+    public boolean isEmpty() {
+        return mKeys.isEmpty();
+    }
+
+    /**
+     * Returns the power of two sample size to decode an image of the given
+     * size with, so that the decoded bitmap covers every requested size.
+     */
+    public int getSampleSize(int outWidth, int outHeight) {
+        if (mNeedsFullSize || mKeys.isEmpty()) {
+            return 1;
+        }
+        int sampleSize = 1;
+        while (outWidth / (sampleSize * 2) >= mMaxWidth && outHeight / (sampleSize * 2) >= mMaxHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Returns true if a bitmap of the given size covers every requested size,
+     * none of which is the full-size image.
+     */
+    public boolean isCoveredBy(int width, int height) {
+        return !mNeedsFullSize && !mKeys.isEmpty() && width >= mMaxWidth && height >= mMaxHeight;
+    }
+
+    /**
+     * Derives every requested variant from {@code decodedBitmap}.
+     *
+     * @param isFullSize
+     *            true if {@code decodedBitmap} was decoded without sampling
+     * @return the variants, by cache key
+     */
+    public Map<CacheKey, Bitmap> deriveVariants(Bitmap decodedBitmap, boolean isFullSize) {
+        mDecodedBitmap = decodedBitmap;
+        mVariants.clear();
+        for (CacheKey key : mKeys.values()) {
+            if (mVariants.containsKey(key)) {
+                continue;
+            }
+            if (key.isFullSize()) {
+                if (isFullSize) {
+                    mVariants.put(key, decodedBitmap);
+                }
+            } else {
+                mVariants.put(key, centerCrop(decodedBitmap, key.getWidth(), key.getHeight()));
+            }
+        }
+        return mVariants;
+    }
+
+    /**
+     * Returns the variant planned for {@code request}, or the decoded bitmap
+     * for requests that were not part of the plan.
+     */
+    public Bitmap getBitmap(DownloadRequest request) {
+        CacheKey key = mKeys.get(request);
+        Bitmap variant = key != null ? mVariants.get(key) : null;
+        return variant != null ? variant : mDecodedBitmap;
+    }
+
+    /**
+     * Crops {@code bitmap} to exactly the given size if it is larger in both
+     * dimensions, and returns it as is otherwise.
+     */
+    private static Bitmap centerCrop(Bitmap bitmap, int width, int height) {
+        if (bitmap.getWidth() <= width || bitmap.getHeight() <= height) {
+            return bitmap;
+        }
+        Bitmap cropped = Bitmaps.safeCenterCrop(bitmap, width, height);
+        return cropped != null ? cropped : bitmap;
+    }
+}
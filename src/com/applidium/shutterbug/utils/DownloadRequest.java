@@ -1,23 +1,109 @@
 package com.applidium.shutterbug.utils;
 
 import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.applidium.shutterbug.metrics.StageTimings;
 import com.applidium.shutterbug.utils.ShutterbugManager.ShutterbugManagerListener;
 
 public class DownloadRequest {
+    private static final AtomicLong   sNextId = new AtomicLong();
+
+    private final long                mId;
+    private final long                mCreatedAt;
+    private final StageTimings        mStageTimings;
     private String                    mUrl;
+    private String                    mRequestedUrl;
     private WeakReference<ShutterbugManagerListener> mListener;
+    private volatile Priority         mPriority;
+    private boolean                   mDiskOnly;
+    private RetryPolicy               mRetryPolicy;
 
     public DownloadRequest(String url, ShutterbugManagerListener listener) {
+        this(url, listener, Priority.VISIBLE);
+    }
+
+    public DownloadRequest(String url, ShutterbugManagerListener listener, Priority priority) {
+        mId = sNextId.incrementAndGet();
+        mCreatedAt = System.nanoTime();
+        mStageTimings = StageTimings.createIfListening();
         mUrl = url;
+        mRequestedUrl = url;
         mListener = new WeakReference<ShutterbugManagerListener>(listener);
+        mPriority = priority;
+    }
+
+    public long getId() {
+        return mId;
+    }
+
+    /**
+     * Returns when this request was created, as returned by
+     * {@link System#nanoTime()}.
+     */
+    public long getCreatedAt() {
+        return mCreatedAt;
+    }
+
+    /**
+     * Returns the stages this request went through, or null if no request
+     * event listener was installed when it was created.
+     */
+    public StageTimings getStageTimings() {
+        return mStageTimings;
     }
 
     public String getUrl() {
         return mUrl;
     }
 
+    /**
+     * Returns the url the listener asked for, which differs from
+     * {@link #getUrl()} when a {@link UrlRewriter} mapped it to a sized
+     * variant. Listeners are notified with this url.
+     */
+    public String getRequestedUrl() {
+        return mRequestedUrl;
+    }
+
+    public void setRequestedUrl(String requestedUrl) {
+        mRequestedUrl = requestedUrl;
+    }
+
     public ShutterbugManagerListener getListener() {
         return mListener.get();
     }
+
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    public void setPriority(Priority priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * Returns true if this request only needs the image stored in the disk
+     * cache. Such requests skip the decode, and their listener is notified of
+     * success with a null bitmap.
+     */
+    public boolean isDiskOnly() {
+        return mDiskOnly;
+    }
+
+    public void setDiskOnly(boolean diskOnly) {
+        mDiskOnly = diskOnly;
+    }
+
+    /**
+     * Returns the retry policy of this request, or null to use the default one
+     * of the manager.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return mRetryPolicy;
+    }
+
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
 }
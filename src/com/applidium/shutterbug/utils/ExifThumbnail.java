@@ -0,0 +1,125 @@
+package com.applidium.shutterbug.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the thumbnail embedded in the EXIF block of a JPEG file. Only the
+ * segments before the image data are read, at their positions in the file.
+ */
+final class ExifThumbnail {
+    private static final int  MARKER_SOI        = 0xD8;
+    private static final int  MARKER_APP1       = 0xE1;
+    private static final int  MARKER_SOS        = 0xDA;
+    private static final int  MARKER_EOI        = 0xD9;
+    private static final int  TAG_COMPRESSION   = 0x0103;
+    private static final int  TAG_JPEG_OFFSET   = 0x0201;
+    private static final int  TAG_JPEG_LENGTH   = 0x0202;
+    private static final int  COMPRESSION_JPEG  = 6;
+    // The EXIF block comes first, don't look further than this for it
+    private static final long MAX_HEADER_LENGTH = 256 * 1024;
+
+    private ExifThumbnail() {
+    }
+
+    /**
+     * Returns the encoded thumbnail of the JPEG file read by {@code channel},
+     * or null if it has none.
+     */
+    static byte[] read(FileChannel channel) throws IOException {
+        ByteBuffer marker = ByteBuffer.allocate(4);
+        if (!readFully(channel, marker, 0, 2) || (marker.get(0) & 0xFF) != 0xFF || (marker.get(1) & 0xFF) != MARKER_SOI) {
+            return null;
+        }
+        long position = 2;
+        while (position < MAX_HEADER_LENGTH) {
+            if (!readFully(channel, marker, position, 4) || (marker.get(0) & 0xFF) != 0xFF) {
+                return null;
+            }
+            int type = marker.get(1) & 0xFF;
+            int length = marker.getShort(2) & 0xFFFF;
+            if (type == MARKER_SOS || type == MARKER_EOI || length < 2) {
+                return null;
+            }
+            if (type == MARKER_APP1) {
+                ByteBuffer segment = ByteBuffer.allocate(length - 2);
+                if (!readFully(channel, segment, position + 4, length - 2)) {
+                    return null;
+                }
+                byte[] thumbnail = parseExif(segment);
+                if (thumbnail != null) {
+                    return thumbnail;
+                }
+            }
+            position += 2 + length;
+        }
+        return null;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the thumbnail in the second image file directory of an APP1
+     * segment.
+     */
+    private static byte[] parseExif(ByteBuffer segment) {
+        // "Exif\0\0", then a TIFF header
+        if (segment.limit() < 14 || segment.get(0) != 'E' || segment.get(1) != 'x' || segment.get(2) != 'i'
+                || segment.get(3) != 'f') {
+            return null;
+        }
+        int tiff = 6;
+        if (segment.get(tiff) == 'I' && segment.get(tiff + 1) == 'I') {
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+        } else if (segment.get(tiff) == 'M' && segment.get(tiff + 1) == 'M') {
+            segment.order(ByteOrder.BIG_ENDIAN);
+        } else {
+            return null;
+        }
+        try {
+            int ifd0 = tiff + segment.getInt(tiff + 4);
+            int ifd0Entries = segment.getShort(ifd0) & 0xFFFF;
+            int ifd1Offset = segment.getInt(ifd0 + 2 + ifd0Entries * 12);
+            if (ifd1Offset == 0) {
+                return null;
+            }
+            int ifd1 = tiff + ifd1Offset;
+            int entries = segment.getShort(ifd1) & 0xFFFF;
+            int offset = -1;
+            int length = -1;
+            for (int i = 0; i < entries; i++) {
+                int entry = ifd1 + 2 + i * 12;
+                int tag = segment.getShort(entry) & 0xFFFF;
+                if (tag == TAG_COMPRESSION && (segment.getShort(entry + 8) & 0xFFFF) != COMPRESSION_JPEG) {
+                    return null;
+                } else if (tag == TAG_JPEG_OFFSET) {
+                    offset = segment.getInt(entry + 8);
+                } else if (tag == TAG_JPEG_LENGTH) {
+                    length = segment.getInt(entry + 8);
+                }
+            }
+            if (offset <= 0 || length <= 0 || offset > segment.limit() - tiff - length) {
+                return null;
+            }
+            byte[] thumbnail = new byte[length];
+            segment.position(tiff + offset);
+            segment.get(thumbnail);
+            return thumbnail;
+        } catch (IndexOutOfBoundsException e) {
+            // Offsets pointing out of the segment
+            return null;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.applidium.shutterbug.utils;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Why an image could not be fetched.
+ */
+public enum FailureReason {
+    /** The image does not exist; asking again will not help for a while */
+    NOT_FOUND,
+    /** A network, server or decoding error that may not happen again */
+    TRANSIENT,
+    /** The work was dropped because a queue overflowed; nothing is known of the image */
+    DROPPED,
+    /** The disk cache has no room for the image; asking again will not help until space is freed */
+    NO_SPACE;
+
+    /**
+     * Classifies an HTTP error status. Client errors are permanent, except
+     * for timeouts and rate limiting.
+     */
+    public static FailureReason forResponseCode(int responseCode) {
+        if (responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || responseCode == 429) {
+            return TRANSIENT;
+        }
+        if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST && responseCode < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+            return NOT_FOUND;
+        }
+        return TRANSIENT;
+    }
+}
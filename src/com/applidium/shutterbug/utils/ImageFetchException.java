@@ -0,0 +1,25 @@
+package com.applidium.shutterbug.utils;
+
+/**
+ * Why an {@link ImageFuture} or a blocking load failed.
+ */
+public class ImageFetchException extends Exception {
+    private static final long   serialVersionUID = 1L;
+
+    private final String        mUrl;
+    private final FailureReason mReason;
+
+    public ImageFetchException(String url, FailureReason reason) {
+        super("Could not fetch " + url + " (" + reason + ")");
+        mUrl = url;
+        mReason = reason;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public FailureReason getReason() {
+        return mReason;
+    }
+}
@@ -0,0 +1,200 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The result of a fetch that completes on whichever thread finishes the work,
+ * never requiring a {@link android.os.Looper}. Listeners are called on that
+ * thread, or right away on the thread adding them if the future is already
+ * done.
+ * <p>
+ * Cancelling the future stops the work it is waiting for: queued work is
+ * dropped, connections are closed and disk writes are aborted.
+ */
+public class ImageFuture<T> implements Future<T>, CancellationToken {
+    public interface Listener<T> {
+        /**
+         * Called once the future succeeded, failed or was cancelled.
+         */
+        void onDone(ImageFuture<T> future);
+    }
+
+    private final CountDownLatch    mDone      = new CountDownLatch(1);
+    private final List<Listener<T>> mListeners = new ArrayList<Listener<T>>();
+    private boolean                 mCompleted;
+    private boolean                 mCancelled;
+    private T                       mResult;
+    private Throwable               mFailure;
+
+    /**
+     * Returns a future completing once all of {@code futures} are done, with
+     * their results in the same order. It fails with the first failure or
+     * cancellation among them, once they are all done. Cancelling it cancels
+     * them all.
+     */
+    public static <T> ImageFuture<List<T>> allOf(final List<ImageFuture<T>> futures) {
+        final ImageFuture<List<T>> all = new ImageFuture<List<T>>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                for (ImageFuture<T> future : futures) {
+                    future.cancel(mayInterruptIfRunning);
+                }
+                return cancelled;
+            }
+        };
+        if (futures.isEmpty()) {
+            all.complete(new ArrayList<T>());
+            return all;
+        }
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        Listener<T> listener = new Listener<T>() {
+            @Override
+            public void onDone(ImageFuture<T> future) {
+                if (remaining.decrementAndGet() > 0) {
+                    return;
+                }
+                List<T> results = new ArrayList<T>(futures.size());
+                for (ImageFuture<T> each : futures) {
+                    if (each.isCancelled()) {
+                        all.fail(new CancellationException());
+                        return;
+                    }
+                    if (each.getFailure() != null) {
+                        all.fail(each.getFailure());
+                        return;
+                    }
+                    results.add(each.getResult());
+                }
+                all.complete(results);
+            }
+        };
+        for (ImageFuture<T> future : futures) {
+            future.addListener(listener);
+        }
+        return all;
+    }
+
+    /**
+     * Adds a listener, called right away if the future is already done.
+     */
+    public void addListener(Listener<T> listener) {
+        synchronized (this) {
+            if (!isDone()) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onDone(this);
+    }
+
+    boolean complete(T result) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            mResult = result;
+            mCompleted = true;
+        }
+        onDone();
+        return true;
+    }
+
+    boolean fail(Throwable failure) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            mFailure = failure;
+            mCompleted = true;
+        }
+        onDone();
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            mCancelled = true;
+        }
+        onDone();
+        return true;
+    }
+
+    private void onDone() {
+        mDone.countDown();
+        List<Listener<T>> listeners;
+        synchronized (this) {
+            listeners = new ArrayList<Listener<T>>(mListeners);
+            mListeners.clear();
+        }
+        for (Listener<T> listener : listeners) {
+            listener.onDone(this);
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    @Override
+    public boolean isCancellationRequested() {
+        return isCancelled();
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mCompleted || mCancelled;
+    }
+
+    /**
+     * Returns the result, or null if the future is not done or did not
+     * succeed.
+     */
+    public synchronized T getResult() {
+        return mResult;
+    }
+
+    /**
+     * Returns why the future failed, or null.
+     */
+    public synchronized Throwable getFailure() {
+        return mFailure;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getDone();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getDone();
+    }
+
+    private synchronized T getDone() throws ExecutionException {
+        if (mCancelled) {
+            throw new CancellationException();
+        }
+        if (mFailure != null) {
+            throw new ExecutionException(mFailure);
+        }
+        return mResult;
+    }
+}
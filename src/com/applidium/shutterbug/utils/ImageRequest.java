@@ -0,0 +1,44 @@
+package com.applidium.shutterbug.utils;
+
+/**
+ * An image to fetch without a {@link ShutterbugManager.ShutterbugManagerListener},
+ * at a size and a priority. A width or height of 0 or less requests the
+ * full-size image.
+ */
+public class ImageRequest {
+    private final String   mUrl;
+    private final int      mWidth;
+    private final int      mHeight;
+    private final Priority mPriority;
+
+    public ImageRequest(String url) {
+        this(url, 0, 0);
+    }
+
+    public ImageRequest(String url, int width, int height) {
+        this(url, width, height, Priority.VISIBLE);
+    }
+
+    public ImageRequest(String url, int width, int height, Priority priority) {
+        mUrl = url;
+        mWidth = width;
+        mHeight = height;
+        mPriority = priority;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public Priority getPriority() {
+        return mPriority;
+    }
+}
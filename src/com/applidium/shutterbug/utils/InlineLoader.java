@@ -0,0 +1,382 @@
+package com.applidium.shutterbug.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.applidium.shutterbug.cache.CacheKey;
+import com.applidium.shutterbug.cache.DiskLruCache.Snapshot;
+import com.applidium.shutterbug.cache.ImageCache;
+import com.applidium.shutterbug.downloader.ShutterbugDownloader;
+import com.applidium.shutterbug.downloader.ShutterbugStreamOpener;
+import com.applidium.shutterbug.metrics.ShutterbugMetrics;
+import com.applidium.shutterbug.metrics.Stage;
+import com.applidium.shutterbug.metrics.StageTimings;
+import com.techsmith.utilities.Bitmaps;
+import com.techsmith.utilities.IO;
+
+/**
+ * Runs the stages of the pipeline for one image on the calling thread: the
+ * memory, encoded and disk caches, then the network. Nothing is posted to the
+ * main thread, so that callers complete without a Looper.
+ */
+class InlineLoader {
+    private static final int        READ_BUFFER_SIZE        = 8 * 1024;
+
+    private final Context           mContext;
+    private final ShutterbugMetrics mMetrics = ShutterbugMetrics.getSharedMetrics();
+
+    InlineLoader(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns true if {@code url} is a path on the device, read in place
+     * rather than through the disk cache.
+     */
+    static boolean isLocalFile(String url) {
+        return url.startsWith(File.separator);
+    }
+
+    /**
+     * Returns true if {@code url} is a local file or an asset, neither of
+     * which is copied into the disk cache.
+     */
+    static boolean isReadInPlace(String url) {
+        return isLocalFile(url) || AssetParser.isAssetUri(url);
+    }
+
+    Bitmap getFromMemory(ImageRequest request) {
+        CacheKey key = new CacheKey(request.getUrl(), request.getWidth(), request.getHeight());
+        return getImageCache().getFromMemory(Collections.singletonList(key))[0];
+    }
+
+    /**
+     * Decodes the image from the encoded or disk cache, at the requested size
+     * if that size is cached, otherwise from the full-size image, and stores
+     * it in memory. Local files and assets are decoded in place, assets from
+     * a cached thumbnail if there is one of the requested size.
+     *
+     * @return the bitmap, or null if the image is not cached
+     */
+    Bitmap getFromDisk(ImageRequest request) {
+        Callable<Bitmap> decodeCall = findOnDisk(request);
+        try {
+            return decodeCall != null ? decodeCall.call() : null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Reads what {@link #getFromDisk} needs from the encoded or disk cache,
+     * and returns the rest of the work, which decodes the image and can run
+     * on the decode pool.
+     *
+     * @return the decode, or null if the image is not cached
+     */
+    Callable<Bitmap> findOnDisk(ImageRequest request) {
+        CacheKey key = new CacheKey(request.getUrl(), request.getWidth(), request.getHeight());
+        if (!isLocalFile(request.getUrl()) && !key.isFullSize()) {
+            byte[] bytes = readEncoded(key.getDiskKey());
+            if (bytes != null) {
+                return new DecodeCall(request, bytes, false);
+            }
+        }
+        if (isReadInPlace(request.getUrl())) {
+            return new LocalDecodeCall(request);
+        }
+        byte[] bytes = readEncoded(ImageCache.getCacheKey(request.getUrl()));
+        return bytes != null ? new DecodeCall(request, bytes, true) : null;
+    }
+
+    /**
+     * Returns the encoded bytes of the full-size image, from the encoded or
+     * disk cache, or from the file itself for local files and assets.
+     *
+     * @return the bytes, or null if the image is not cached
+     */
+    byte[] getEncodedFromDisk(ImageRequest request) {
+        if (isReadInPlace(request.getUrl())) {
+            return readLocal(request.getUrl());
+        }
+        return readEncoded(ImageCache.getCacheKey(request.getUrl()));
+    }
+
+    private byte[] readEncoded(String diskKey) {
+        ImageCache imageCache = getImageCache();
+        InputStream inStream = imageCache.getEncodedInputStream(diskKey);
+        Snapshot snapshot = null;
+        try {
+            if (inStream == null) {
+                long lookupStart = System.nanoTime();
+                snapshot = imageCache.getSnapshot(diskKey);
+                mMetrics.recordSince(Stage.DISK_READ, lookupStart);
+                if (snapshot == null) {
+                    mMetrics.increment(ShutterbugMetrics.DISK_MISSES);
+                    return null;
+                }
+                mMetrics.increment(ShutterbugMetrics.DISK_HITS);
+                inStream = imageCache.readThroughEncodedCache(diskKey, snapshot);
+                if (inStream == null) {
+                    return null;
+                }
+            }
+            return readFully(inStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            IO.closeQuietly( inStream );
+            IO.closeQuietly( snapshot );
+        }
+    }
+
+    private byte[] readLocal(String url) {
+        InputStream inStream = null;
+        try {
+            inStream = openLocal(url);
+            return readFully(inStream);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            IO.closeQuietly( inStream );
+        }
+    }
+
+    /**
+     * Opens a local file, as a {@link FileInputStream}, or an asset.
+     */
+    private InputStream openLocal(String url) throws IOException {
+        if (isLocalFile(url)) {
+            return new FileInputStream(url);
+        }
+        String relativePath = AssetParser.relativePathForAssetUri(url);
+        if (relativePath == null) {
+            throw new FileNotFoundException(url);
+        }
+        return mContext.getAssets().open(relativePath);
+    }
+
+    private static byte[] readFully(InputStream inStream) throws IOException {
+        ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int count;
+        while ((count = inStream.read(buffer)) != -1) {
+            outStream.write(buffer, 0, count);
+        }
+        return outStream.toByteArray();
+    }
+
+    /**
+     * Decodes encoded bytes for a request, sampled and scaled down to its size
+     * if they are of the full-size image.
+     */
+    private class DecodeCall implements Callable<Bitmap> {
+        private final ImageRequest mRequest;
+        private final byte[]       mBytes;
+        private final boolean      mIsFullSize;
+
+        DecodeCall(ImageRequest request, byte[] bytes, boolean isFullSize) {
+            mRequest = request;
+            mBytes = bytes;
+            mIsFullSize = isFullSize;
+        }
+
+        @Override
+        public Bitmap call() {
+            ImageCache imageCache = getImageCache();
+            String url = mRequest.getUrl();
+            long decodeStart = System.nanoTime();
+            if (!mIsFullSize) {
+                Bitmap bitmap = Bitmaps.safeDecodeStream(new ByteArrayInputStream(mBytes));
+                mMetrics.recordSince(Stage.DECODE, decodeStart);
+                if (bitmap != null) {
+                    imageCache.storeToMemory(bitmap, new CacheKey(url, mRequest.getWidth(), mRequest.getHeight()));
+                }
+                return bitmap;
+            }
+
+            DownloadRequest planned = new DownloadRequest(url, null, mRequest.getPriority());
+            DecodePlan decodePlan = new DecodePlan(url);
+            decodePlan.addRequest(planned, mRequest.getWidth(), mRequest.getHeight());
+            BitmapFactory.Options inOptions = new BitmapFactory.Options();
+            inOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(new ByteArrayInputStream(mBytes), null, inOptions);
+            int sampleSize = decodePlan.getSampleSize(inOptions.outWidth, inOptions.outHeight);
+            Bitmap bitmap = Bitmaps.safeDecodeStream(new ByteArrayInputStream(mBytes), sampleSize);
+            mMetrics.recordSince(Stage.DECODE, decodeStart);
+            if (bitmap == null) {
+                return null;
+            }
+
+            storeVariants(decodePlan, bitmap, sampleSize == 1, false, null);
+            return decodePlan.getBitmap(planned);
+        }
+    }
+
+    /**
+     * Decodes a local file or an asset for a request, a file from its EXIF
+     * thumbnail if that is large enough, and scales it down to the size of the
+     * request.
+     */
+    private class LocalDecodeCall implements Callable<Bitmap> {
+        private final ImageRequest mRequest;
+
+        LocalDecodeCall(ImageRequest request) {
+            mRequest = request;
+        }
+
+        @Override
+        public Bitmap call() {
+            String url = mRequest.getUrl();
+            DownloadRequest planned = new DownloadRequest(url, null, mRequest.getPriority());
+            DecodePlan decodePlan = new DecodePlan(url);
+            decodePlan.addRequest(planned, mRequest.getWidth(), mRequest.getHeight());
+            LocalFileDecoder decoder = new LocalFileDecoder(decodePlan);
+            InputStream inStream = null;
+            Bitmap bitmap;
+            long decodeStart = System.nanoTime();
+            try {
+                inStream = openLocal(url);
+                if (inStream instanceof FileInputStream) {
+                    bitmap = decoder.decode((FileInputStream) inStream);
+                } else {
+                    bitmap = decoder.decodeStream(inStream);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            } finally {
+                IO.closeQuietly( inStream );
+            }
+            mMetrics.recordSince(Stage.DECODE, decodeStart);
+            if (bitmap == null) {
+                return null;
+            }
+            storeVariants(decodePlan, bitmap, decoder.isFullSize(), !isLocalFile(url) && decoder.isExpensive(), null);
+            return decodePlan.getBitmap(planned);
+        }
+    }
+
+    /**
+     * Derives the variants planned by {@code decodePlan} from {@code bitmap}
+     * and stores them in memory. Assets that were slow to decode should also
+     * keep them on disk, with {@code storeScaled}: unlike downloads, they have
+     * no disk entry to decode them from faster.
+     *
+     * @param timings
+     *            where to record the scale, or null
+     */
+    void storeVariants(DecodePlan decodePlan, Bitmap bitmap, boolean isFullSize, boolean storeScaled,
+            StageTimings timings) {
+        ImageCache imageCache = getImageCache();
+        long scaleStart = System.nanoTime();
+        Map<CacheKey, Bitmap> variants = decodePlan.deriveVariants(bitmap, isFullSize);
+        for (Map.Entry<CacheKey, Bitmap> variant : variants.entrySet()) {
+            imageCache.storeToMemory(variant.getValue(), variant.getKey());
+        }
+        mMetrics.recordSince(Stage.SCALE, scaleStart, timings);
+        if (storeScaled) {
+            for (Map.Entry<CacheKey, Bitmap> variant : variants.entrySet()) {
+                imageCache.storeScaledToDisk(variant.getValue(), variant.getKey());
+            }
+        }
+    }
+
+    /**
+     * Returns an opener for the image, to be passed to {@link #downloadToDisk}.
+     */
+    ShutterbugStreamOpener createOpener(ImageRequest request) {
+        return createOpener(request, 0);
+    }
+
+    /**
+     * Same as {@link #createOpener(ImageRequest)}, with connect and read
+     * timeouts if {@code timeoutMillis} is positive.
+     */
+    ShutterbugStreamOpener createOpener(ImageRequest request, int timeoutMillis) {
+        DownloadRequest downloadRequest = new DownloadRequest(request.getUrl(), null, request.getPriority());
+        ShutterbugDownloader downloader = new ShutterbugDownloader(null, downloadRequest);
+        downloader.setResumeCache(getImageCache());
+        if (timeoutMillis > 0) {
+            downloader.setTimeout(timeoutMillis);
+        }
+        return downloader;
+    }
+
+    /**
+     * Opens the image and stores it in the disk cache as its full-size entry.
+     * The copy is aborted as soon as {@code token} requests it.
+     *
+     * @return null once the image is stored, or why it could not be
+     */
+    FailureReason downloadToDisk(ShutterbugStreamOpener opener, CancellationToken token) {
+        mMetrics.increment(ShutterbugMetrics.DOWNLOADS_STARTED);
+        long openStart = System.nanoTime();
+        InputStream inStream = opener.openStream();
+        mMetrics.recordSince(Stage.NETWORK, openStart);
+        if (inStream == null) {
+            mMetrics.increment(ShutterbugMetrics.DOWNLOADS_FAILED);
+            return opener.getFailureReason();
+        }
+        try {
+            if (!getImageCache().hasRoomFor(opener.getContentLength())) {
+                mMetrics.increment(ShutterbugMetrics.DOWNLOADS_FAILED);
+                return FailureReason.NO_SPACE;
+            }
+            long writeStart = System.nanoTime();
+            Snapshot snapshot = getImageCache().storeToDisk(inStream, ImageCache.getCacheKey(opener.getResourceUrl()), token,
+                    opener.getValidator(), opener.getContentLength());
+            mMetrics.recordSince(Stage.DISK_WRITE, writeStart);
+            if (snapshot == null) {
+                mMetrics.increment(ShutterbugMetrics.DOWNLOADS_FAILED);
+                return FailureReason.TRANSIENT;
+            }
+            snapshot.close();
+            mMetrics.increment(ShutterbugMetrics.DOWNLOADS_SUCCEEDED);
+            return null;
+        } finally {
+            IO.closeQuietly( inStream );
+        }
+    }
+
+    /**
+     * Returns true if another download is writing the full-size image to
+     * disk, in which case {@link #downloadToDisk} cannot store it.
+     */
+    boolean isBeingStored(String url) {
+        return getImageCache().isBeingStored(url);
+    }
+
+    /**
+     * Waits for at most {@code timeoutMillis} until no download is writing the
+     * full-size image to disk.
+     *
+     * @return false if one still is
+     */
+    boolean awaitStored(String url, long timeoutMillis) throws InterruptedException {
+        return getImageCache().awaitStored(url, timeoutMillis);
+    }
+
+    boolean isOnDisk(String url) {
+        return getImageCache().hasKeyOnDisk(url);
+    }
+
+    private ImageCache getImageCache() {
+        return ImageCache.getSharedImageCache(mContext);
+    }
+}
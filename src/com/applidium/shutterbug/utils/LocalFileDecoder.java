@@ -0,0 +1,150 @@
+package com.applidium.shutterbug.utils;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.applidium.shutterbug.metrics.ShutterbugMetrics;
+import com.techsmith.utilities.Bitmaps;
+
+/**
+ * Decodes a local image for a {@link DecodePlan} from a single open of it.
+ * <p>
+ * For files, the bounds and, for JPEGs, the EXIF thumbnail are read, then the
+ * decoder is pointed back at the start of the same file descriptor. The
+ * embedded thumbnail is used instead of the image when it covers every
+ * requested size and has the same proportions. Assets are decoded from their
+ * stream, reset after reading the bounds.
+ */
+class LocalFileDecoder {
+    // Thumbnails of 16:9 photos are often letterboxed in a 4:3 frame
+    private static final float ASPECT_RATIO_TOLERANCE = 0.02f;
+    // Decodes slower than this are worth skipping by storing their variants
+    private static final long  EXPENSIVE_DECODE_MILLIS = 40;
+
+    private final DecodePlan   mDecodePlan;
+    private boolean            mFullSize;
+    private long               mDecodeMillis;
+
+    LocalFileDecoder(DecodePlan decodePlan) {
+        mDecodePlan = decodePlan;
+    }
+
+    /**
+     * Decodes the file read by {@code inStream}, which is left open.
+     *
+     * @return the bitmap, or null if the file could not be decoded
+     */
+    Bitmap decode(FileInputStream inStream) throws IOException {
+        long decodeStart = System.nanoTime();
+        try {
+            return decodeFile(inStream);
+        } finally {
+            mDecodeMillis = (System.nanoTime() - decodeStart) / 1000000L;
+        }
+    }
+
+    /**
+     * Decodes the image read by {@code inStream}, an asset stream or any
+     * other stream that can be reset, which is left open.
+     *
+     * @return the bitmap, or null if the stream could not be decoded
+     */
+    Bitmap decodeStream(InputStream inStream) throws IOException {
+        long decodeStart = System.nanoTime();
+        mFullSize = false;
+        try {
+            if (!inStream.markSupported()) {
+                inStream = new BufferedInputStream(inStream);
+            }
+            inStream.mark(Integer.MAX_VALUE);
+            BitmapFactory.Options inOptions = new BitmapFactory.Options();
+            inOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(inStream, null, inOptions);
+            if (inOptions.outWidth <= 0 || inOptions.outHeight <= 0) {
+                return null;
+            }
+            inStream.reset();
+            int sampleSize = mDecodePlan.getSampleSize(inOptions.outWidth, inOptions.outHeight);
+            Bitmap bitmap = Bitmaps.safeDecodeStream(inStream, sampleSize);
+            mFullSize = bitmap != null && sampleSize == 1;
+            return bitmap;
+        } finally {
+            mDecodeMillis = (System.nanoTime() - decodeStart) / 1000000L;
+        }
+    }
+
+    private Bitmap decodeFile(FileInputStream inStream) throws IOException {
+        mFullSize = false;
+        FileChannel channel = inStream.getChannel();
+        BitmapFactory.Options inOptions = new BitmapFactory.Options();
+        inOptions.inJustDecodeBounds = true;
+        channel.position(0);
+        BitmapFactory.decodeFileDescriptor(inStream.getFD(), null, inOptions);
+        if (inOptions.outWidth <= 0 || inOptions.outHeight <= 0) {
+            return null;
+        }
+
+        if ("image/jpeg".equals(inOptions.outMimeType)) {
+            Bitmap thumbnail = decodeThumbnail(channel, inOptions.outWidth, inOptions.outHeight);
+            if (thumbnail != null) {
+                ShutterbugMetrics.getSharedMetrics().increment(ShutterbugMetrics.DECODE_EXIF_THUMBNAILS);
+                return thumbnail;
+            }
+        }
+
+        int sampleSize = mDecodePlan.getSampleSize(inOptions.outWidth, inOptions.outHeight);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        channel.position(0);
+        try {
+            Bitmap bitmap = BitmapFactory.decodeFileDescriptor(inStream.getFD(), null, options);
+            mFullSize = bitmap != null && sampleSize == 1;
+            return bitmap;
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns true if the last decoded bitmap is the image at its full size.
+     */
+    boolean isFullSize() {
+        return mFullSize;
+    }
+
+    /**
+     * Returns true if the last decode was slow enough that the scaled
+     * variants of the image are worth keeping on disk.
+     */
+    boolean isExpensive() {
+        return mDecodeMillis >= EXPENSIVE_DECODE_MILLIS;
+    }
+
+    private Bitmap decodeThumbnail(FileChannel channel, int imageWidth, int imageHeight) throws IOException {
+        byte[] thumbnail = ExifThumbnail.read(channel);
+        if (thumbnail == null) {
+            return null;
+        }
+        BitmapFactory.Options inOptions = new BitmapFactory.Options();
+        inOptions.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, inOptions);
+        int width = inOptions.outWidth;
+        int height = inOptions.outHeight;
+        if (width <= 0 || height <= 0 || !mDecodePlan.isCoveredBy(width, height)) {
+            return null;
+        }
+        float aspectRatio = (float) width / height;
+        float imageAspectRatio = (float) imageWidth / imageHeight;
+        if (Math.abs(aspectRatio - imageAspectRatio) > imageAspectRatio * ASPECT_RATIO_TOLERANCE) {
+            return null;
+        }
+        return BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
+    }
+}
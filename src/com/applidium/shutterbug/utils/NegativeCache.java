@@ -0,0 +1,95 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+/**
+ * Remembers the urls that recently failed, so that broken urls are not
+ * requested again on every bind. Holds at most a fixed number of urls, the
+ * oldest failures being forgotten first, and forgets each failure after a
+ * delay that depends on its {@link FailureReason}.
+ */
+public class NegativeCache {
+    public static final int  DEFAULT_MAX_ENTRIES   = 256;
+    // Missing images are unlikely to appear soon...
+    public static final long DEFAULT_NOT_FOUND_TTL = 10 * 60 * 1000;
+    // ...while transient failures have already been retried
+    public static final long DEFAULT_TRANSIENT_TTL = 30 * 1000;
+
+    private static class Failure {
+        final FailureReason mReason;
+        final long          mExpiresAt;
+
+        Failure(FailureReason reason, long expiresAt) {
+            mReason = reason;
+            mExpiresAt = expiresAt;
+        }
+    }
+
+    private final Map<String, Failure> mEntries;
+    private final long               mNotFoundTtl;
+    private final long               mTransientTtl;
+
+    public NegativeCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_NOT_FOUND_TTL, DEFAULT_TRANSIENT_TTL);
+    }
+
+    /**
+     * @param notFoundTtl
+     *            how long to remember images that do not exist, in ms
+     * @param transientTtl
+     *            how long to remember transient failures, in ms
+     */
+    public NegativeCache(final int maxEntries, long notFoundTtl, long transientTtl) {
+        mNotFoundTtl = notFoundTtl;
+        mTransientTtl = transientTtl;
+        mEntries = new LinkedHashMap<String, Failure>(16, 0.75f, false) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Failure> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public synchronized void put(String url, FailureReason reason) {
+        long ttl = reason == FailureReason.NOT_FOUND ? mNotFoundTtl : mTransientTtl;
+        if (ttl <= 0) {
+            return;
+        }
+        // Re-inserted so that the most recent failures are evicted last
+        mEntries.remove(url);
+        mEntries.put(url, new Failure(reason, SystemClock.elapsedRealtime() + ttl));
+    }
+
+    /**
+     * Returns why {@code url} recently failed, or null if it did not or the
+     * failure has expired.
+     */
+    public synchronized FailureReason get(String url) {
+        Failure failure = mEntries.get(url);
+        if (failure == null) {
+            return null;
+        }
+        if (SystemClock.elapsedRealtime() >= failure.mExpiresAt) {
+            mEntries.remove(url);
+            return null;
+        }
+        return failure.mReason;
+    }
+
+    public synchronized void remove(String url) {
+        mEntries.remove(url);
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+}
@@ -0,0 +1,142 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.Bitmap;
+
+import com.applidium.shutterbug.utils.ShutterbugManager.ShutterbugManagerListener;
+
+/**
+ * The urls prefetched by one call to {@link ShutterbugManager#prefetch}, which
+ * can be cancelled together. Callbacks and counts are only meant to be used on
+ * the main thread.
+ */
+public class PrefetchGroup {
+    public interface PrefetchGroupListener {
+        void onPrefetchFinished(PrefetchGroup group);
+    }
+
+    private final ShutterbugManager   mManager;
+    private final int                 mWidth;
+    private final int                 mHeight;
+    // Requests only keep weak references to their listener
+    private final List<Entry>         mEntries = new ArrayList<Entry>();
+    private PrefetchGroupListener     mListener;
+    private int                       mSkippedCount;
+    private int                       mSucceededCount;
+    private int                       mFailedCount;
+    private boolean                   mCancelled;
+
+    private class Entry implements ShutterbugManagerListener {
+        boolean mDone;
+
+        @Override
+        public void onImageSuccess(ShutterbugManager imageManager, Bitmap bitmap, String url) {
+            onEntryFinished(this, true);
+        }
+
+        @Override
+        public void onImageFailure(ShutterbugManager imageManager, String url) {
+            onEntryFinished(this, false);
+        }
+
+        @Override
+        public int getDesiredWidth() {
+            return mWidth;
+        }
+
+        @Override
+        public int getDesiredHeight() {
+            return mHeight;
+        }
+    }
+
+    PrefetchGroup(ShutterbugManager manager, int width, int height) {
+        mManager = manager;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    ShutterbugManagerListener newEntry() {
+        Entry entry = new Entry();
+        mEntries.add(entry);
+        return entry;
+    }
+
+    void skip() {
+        mSkippedCount++;
+    }
+
+    private void onEntryFinished(Entry entry, boolean succeeded) {
+        if (entry.mDone || mCancelled) {
+            return;
+        }
+        entry.mDone = true;
+        if (succeeded) {
+            mSucceededCount++;
+        } else {
+            mFailedCount++;
+        }
+        if (isFinished() && mListener != null) {
+            mListener.onPrefetchFinished(this);
+        }
+    }
+
+    /**
+     * Sets a listener notified once every url of this group has been
+     * prefetched or has failed, right away if that is already the case, e.g.
+     * when every url was skipped. It is not notified if the group is
+     * cancelled.
+     */
+    public void setListener(PrefetchGroupListener listener) {
+        mListener = listener;
+        if (listener != null && isFinished() && !mCancelled) {
+            listener.onPrefetchFinished(this);
+        }
+    }
+
+    /**
+     * Cancels the prefetches of this group that have not completed yet.
+     * Downloads shared with other requests go on for them.
+     */
+    public void cancel() {
+        if (mCancelled) {
+            return;
+        }
+        mCancelled = true;
+        for (Entry entry : mEntries) {
+            if (!entry.mDone) {
+                mManager.cancel(entry);
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public boolean isFinished() {
+        return mSucceededCount + mFailedCount == mEntries.size();
+    }
+
+    /**
+     * Returns the number of urls that were skipped because they were already
+     * cached or being downloaded.
+     */
+    public int getSkippedCount() {
+        return mSkippedCount;
+    }
+
+    public int getPendingCount() {
+        return mCancelled ? 0 : mEntries.size() - mSucceededCount - mFailedCount;
+    }
+
+    public int getSucceededCount() {
+        return mSucceededCount;
+    }
+
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+}
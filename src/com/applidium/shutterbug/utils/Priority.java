@@ -0,0 +1,22 @@
+package com.applidium.shutterbug.utils;
+
+/**
+ * Priority of a request, from the most to the least urgent. Work of a higher
+ * priority is always started before queued work of a lower one, and among
+ * equal priorities the newest request is started first, so that the rows a
+ * list has just scrolled to load before the ones it has scrolled past.
+ */
+public enum Priority {
+    /** Needed right now, e.g. the image the user just tapped */
+    IMMEDIATE,
+    /** Displayed on screen */
+    VISIBLE,
+    /** About to be displayed, e.g. the next rows of a list */
+    PREFETCH,
+    /** Needed eventually, if ever */
+    BACKGROUND;
+
+    public boolean isHigherThan(Priority other) {
+        return other == null || ordinal() < other.ordinal();
+    }
+}
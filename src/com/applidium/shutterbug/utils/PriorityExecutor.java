@@ -0,0 +1,351 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.applidium.shutterbug.metrics.ShutterbugMetrics;
+
+/**
+ * A fixed-size thread pool running queued work by {@link Priority}, newest
+ * first within a priority. Work is submitted with a tag identifying its
+ * owner, through which it can be reprioritized or dropped while still queued.
+ * <p>
+ * The queue can be bounded, in which case its {@link OverflowPolicy} decides
+ * which work is dropped when it is full. The owner of dropped work is told
+ * through the callback it was submitted with, on the main thread.
+ */
+public class PriorityExecutor implements Executor {
+    public enum OverflowPolicy {
+        /**
+         * Makes room by dropping the oldest of the lowest priority work queued,
+         * if it was queued at {@link Priority#PREFETCH} or lower and is not
+         * more important than the new work. Otherwise new prefetch or
+         * background work is dropped, while more important work is queued
+         * over the capacity: work for what is on screen is never dropped.
+         */
+        DROP_OLDEST_PREFETCH,
+        /**
+         * Replaces any queued work with the same tag by the new work, whether
+         * the queue is full or not. New work that does not replace anything is
+         * dropped if the queue is full.
+         */
+        MERGE_DUPLICATES,
+        /** Drops new work while the queue is full */
+        REJECT
+    }
+
+    private static Handler                    sMainHandler;
+
+    private final ThreadPoolExecutor          mExecutor;
+    private final PriorityBlockingQueue<Runnable> mQueue;
+    private final int                         mCapacity;
+    private final OverflowPolicy              mOverflowPolicy;
+    private final AtomicLong                  mSequence     = new AtomicLong();
+    private final AtomicLong                  mDroppedCount = new AtomicLong();
+    private final AtomicLong                  mMergedCount  = new AtomicLong();
+    private final AtomicLong                  mRejectedCount = new AtomicLong();
+    private final AtomicLong                  mBusyNanos    = new AtomicLong();
+
+    private static class Job implements Runnable, Comparable<Job> {
+        final Runnable mRunnable;
+        final Priority mPriority;
+        final long     mSequence;
+        final Object   mTag;
+        final Runnable mOnDropped;
+        final AtomicLong mBusyNanos;
+
+        Job(Runnable runnable, Priority priority, long sequence, Object tag, Runnable onDropped, AtomicLong busyNanos) {
+            mRunnable = runnable;
+            mPriority = priority;
+            mSequence = sequence;
+            mTag = tag;
+            mOnDropped = onDropped;
+            mBusyNanos = busyNanos;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            try {
+                mRunnable.run();
+            } finally {
+                mBusyNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mPriority != other.mPriority) {
+                return mPriority.ordinal() < other.mPriority.ordinal() ? -1 : 1;
+            }
+            // Last in, first out
+            return mSequence > other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Creates a pool with an unbounded queue.
+     */
+    public PriorityExecutor(String name, int threadCount) {
+        this(name, threadCount, Integer.MAX_VALUE, OverflowPolicy.REJECT);
+    }
+
+    public PriorityExecutor(final String name, int threadCount, int capacity, OverflowPolicy overflowPolicy) {
+        mCapacity = capacity;
+        mOverflowPolicy = overflowPolicy;
+        mQueue = new PriorityBlockingQueue<Runnable>();
+        mExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS, mQueue, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, name + " #" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Reports the metrics of this pool under {@code name}:
+     * <ul>
+     * <li>{@code queue.<name>.depth}, the work queued, and the
+     * {@code queue.<name>.dropped}, {@code .merged} and {@code .rejected}
+     * counters of the work dropped to make room, merged with newer work and
+     * rejected;
+     * <li>{@code pool.<name>.threads} and {@code pool.<name>.active}, the size
+     * of the pool and the threads running work, {@code pool.<name>.utilization}
+     * the percentage of threads busy, and the {@code pool.<name>.busy_ms}
+     * counter of time spent running work, to compute utilization over a
+     * period.
+     * </ul>
+     */
+    public void registerMetrics(String name) {
+        ShutterbugMetrics metrics = ShutterbugMetrics.getSharedMetrics();
+        String prefix = "queue." + name;
+        metrics.registerGauge(prefix + ".depth", new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mQueue.size();
+            }
+        });
+        metrics.registerCounter(prefix + ".dropped", new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mDroppedCount.get();
+            }
+        });
+        metrics.registerCounter(prefix + ".merged", new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mMergedCount.get();
+            }
+        });
+        metrics.registerCounter(prefix + ".rejected", new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mRejectedCount.get();
+            }
+        });
+        prefix = "pool." + name;
+        metrics.registerGauge(prefix + ".threads", new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mExecutor.getMaximumPoolSize();
+            }
+        });
+        metrics.registerGauge(prefix + ".active", new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mExecutor.getActiveCount();
+            }
+        });
+        metrics.registerGauge(prefix + ".utilization", new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mExecutor.getActiveCount() * 100L / mExecutor.getMaximumPoolSize();
+            }
+        });
+        metrics.registerCounter(prefix + ".busy_ms", new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mBusyNanos.get() / 1000000L;
+            }
+        });
+    }
+
+    /**
+     * Runs {@code runnable} at {@link Priority#VISIBLE}, without a tag.
+     */
+    @Override
+    public void execute(Runnable runnable) {
+        execute(runnable, Priority.VISIBLE, null);
+    }
+
+    public void execute(Runnable runnable, Priority priority, Object tag) {
+        execute(runnable, priority, tag, null);
+    }
+
+    /**
+     * Queues {@code runnable}. If the queue overflows and this or other work
+     * is dropped, the {@code onDropped} callback of the dropped work, if any,
+     * is posted to the main thread.
+     */
+    public void execute(Runnable runnable, Priority priority, Object tag, Runnable onDropped) {
+        Job job = new Job(runnable, priority, mSequence.incrementAndGet(), tag, onDropped, mBusyNanos);
+        synchronized (this) {
+            if (mOverflowPolicy == OverflowPolicy.MERGE_DUPLICATES) {
+                for (Job merged : removeQueued(tag)) {
+                    mMergedCount.incrementAndGet();
+                    notifyDropped(merged);
+                }
+            }
+            if (mQueue.size() >= mCapacity) {
+                boolean dropsPrefetches = mOverflowPolicy == OverflowPolicy.DROP_OLDEST_PREFETCH;
+                Job victim = dropsPrefetches ? findPrefetchVictim(priority) : null;
+                if (victim != null && mQueue.remove(victim)) {
+                    mDroppedCount.incrementAndGet();
+                    notifyDropped(victim);
+                } else if (!dropsPrefetches || !priority.isHigherThan(Priority.PREFETCH)) {
+                    mRejectedCount.incrementAndGet();
+                    notifyDropped(job);
+                    return;
+                }
+            }
+            mExecutor.execute(job);
+        }
+    }
+
+    private Job findPrefetchVictim(Priority priority) {
+        Job victim = null;
+        for (Runnable runnable : mQueue.toArray(new Runnable[0])) {
+            Job job = (Job) runnable;
+            if (victim == null
+                  || job.mPriority.ordinal() > victim.mPriority.ordinal()
+                  || (job.mPriority == victim.mPriority && job.mSequence < victim.mSequence)) {
+                victim = job;
+            }
+        }
+        if (victim == null || victim.mPriority.isHigherThan(Priority.PREFETCH)) {
+            return null;
+        }
+        return victim.mPriority.isHigherThan(priority) ? null : victim;
+    }
+
+    private static synchronized void notifyDropped(Job job) {
+        if (job.mOnDropped == null) {
+            return;
+        }
+        if (sMainHandler == null) {
+            sMainHandler = new Handler(Looper.getMainLooper());
+        }
+        sMainHandler.post(job.mOnDropped);
+    }
+
+    /**
+     * Returns an executor submitting to this pool at the given priority and
+     * with the given tag, e.g. to be passed to
+     * {@link android.os.AsyncTask#executeOnExecutor}.
+     */
+    public Executor withPriority(Priority priority, Object tag) {
+        return withPriority(priority, tag, null);
+    }
+
+    /**
+     * Same as {@link #withPriority(Priority, Object)}, with a callback posted
+     * to the main thread if the work is dropped because the queue overflowed.
+     */
+    public Executor withPriority(final Priority priority, final Object tag, final Runnable onDropped) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                PriorityExecutor.this.execute(runnable, priority, tag, onDropped);
+            }
+        };
+    }
+
+    /**
+     * Moves the queued work tagged with {@code tag} to {@code priority}. Work
+     * already running is not affected.
+     */
+    public void setPriority(Object tag, Priority priority) {
+        for (Job job : removeQueued(tag)) {
+            mQueue.offer(new Job(job.mRunnable, priority, job.mSequence, tag, job.mOnDropped, mBusyNanos));
+        }
+    }
+
+    /**
+     * Drops the queued work tagged with {@code tag}. Work already running is
+     * not affected.
+     * 
+     * @return the number of dropped runnables
+     */
+    public int cancel(Object tag) {
+        return removeQueued(tag).size();
+    }
+
+    /**
+     * Same as {@link #cancel}, but the {@code onDropped} callback of the
+     * dropped work is posted to the main thread, e.g. for work owning an open
+     * stream to close it.
+     * 
+     * @return the number of dropped runnables
+     */
+    public int drop(Object tag) {
+        List<Job> removed = removeQueued(tag);
+        for (Job job : removed) {
+            notifyDropped(job);
+        }
+        return removed.size();
+    }
+
+    private List<Job> removeQueued(Object tag) {
+        List<Job> removed = new ArrayList<Job>();
+        if (tag == null) {
+            return removed;
+        }
+        for (Runnable runnable : mQueue.toArray(new Runnable[0])) {
+            Job job = (Job) runnable;
+            // A worker may have taken the job in the meantime
+            if (job.mTag == tag && mQueue.remove(job)) {
+                removed.add(job);
+            }
+        }
+        return removed;
+    }
+
+    public int getQueueSize() {
+        return mQueue.size();
+    }
+
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    /**
+     * Stops the pool once the work already queued has run.
+     */
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    public int getThreadCount() {
+        return mExecutor.getMaximumPoolSize();
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+}
@@ -0,0 +1,309 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import com.applidium.shutterbug.downloader.ShutterbugStreamOpener;
+import com.applidium.shutterbug.utils.ShutterbugManager.ShutterbugManagerListener;
+
+/**
+ * Tracks the pending requests of a {@link ShutterbugManager}, indexed both by
+ * listener and by url, so that registering, cancelling and notifying requests
+ * are constant time operations whatever the number of pending requests.
+ * <p>
+ * A request is first waiting for the cache to be queried, then, on a cache
+ * miss, attached to the download of its url, which is shared by all the
+ * requests for the same url. All methods are atomic, so the indexes can never
+ * disagree with one another.
+ */
+public class RequestRegistry {
+    private static class Download {
+        final String                 mUrl;
+        final ShutterbugStreamOpener mOpener;
+        final Set<DownloadRequest>   mRequests = new LinkedHashSet<DownloadRequest>();
+        // Released once the download is completed or cancelled
+        final CountDownLatch         mFinished = new CountDownLatch(1);
+
+        Download(String url, ShutterbugStreamOpener opener) {
+            mUrl = url;
+            mOpener = opener;
+        }
+    }
+
+    // Listeners are compared by identity, they rarely override equals()
+    private final Map<ShutterbugManagerListener, Set<DownloadRequest>> mRequestsByListener = new IdentityHashMap<ShutterbugManagerListener, Set<DownloadRequest>>();
+    private final Map<DownloadRequest, ShutterbugManagerListener>      mListeners          = new IdentityHashMap<DownloadRequest, ShutterbugManagerListener>();
+    private final Map<DownloadRequest, Download>                       mDownloadOfRequest  = new IdentityHashMap<DownloadRequest, Download>();
+    private final Map<String, Download>                                mDownloadsByUrl     = new HashMap<String, Download>();
+    private int                                                        mCacheQueryCount;
+
+    /**
+     * Registers a new request, waiting for the cache to be queried.
+     */
+    public synchronized void register(DownloadRequest request, ShutterbugManagerListener listener) {
+        if (mListeners.containsKey(request)) {
+            return;
+        }
+        mListeners.put(request, listener);
+        Set<DownloadRequest> requests = mRequestsByListener.get(listener);
+        if (requests == null) {
+            requests = new LinkedHashSet<DownloadRequest>();
+            mRequestsByListener.put(listener, requests);
+        }
+        requests.add(request);
+        mCacheQueryCount++;
+    }
+
+    /**
+     * Returns true if {@code request} has been registered and has neither
+     * completed nor been cancelled since.
+     */
+    public synchronized boolean isRegistered(DownloadRequest request) {
+        return mListeners.containsKey(request);
+    }
+
+    /**
+     * Returns the listener {@code request} was registered with, or null if it
+     * is no longer registered.
+     */
+    public synchronized ShutterbugManagerListener getListener(DownloadRequest request) {
+        return mListeners.get(request);
+    }
+
+    /**
+     * Unregisters a request found in the cache.
+     *
+     * @return false if the request had already been cancelled
+     */
+    public synchronized boolean completeCacheQuery(DownloadRequest request) {
+        if (!mListeners.containsKey(request) || mDownloadOfRequest.containsKey(request)) {
+            return false;
+        }
+        remove(request);
+        return true;
+    }
+
+    /**
+     * Returns the requests registered by {@code listener}, in the order they
+     * were registered.
+     */
+    public synchronized List<DownloadRequest> getRequests(ShutterbugManagerListener listener) {
+        Set<DownloadRequest> requests = mRequestsByListener.get(listener);
+        if (requests == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<DownloadRequest>(requests);
+    }
+
+    /**
+     * Returns the opener of the download {@code request} is attached to, or
+     * null if it is not attached to any.
+     */
+    public synchronized ShutterbugStreamOpener getDownloaderOf(DownloadRequest request) {
+        Download download = mDownloadOfRequest.get(request);
+        return download != null ? download.mOpener : null;
+    }
+
+    /**
+     * Returns the highest priority of the requests attached to the download
+     * run by {@code opener}, or null if none is attached.
+     */
+    public synchronized Priority getDownloadPriority(ShutterbugStreamOpener opener) {
+        Download download = mDownloadsByUrl.get(opener.getResourceUrl());
+        if (download == null || download.mOpener != opener) {
+            return null;
+        }
+        Priority highest = null;
+        for (DownloadRequest request : download.mRequests) {
+            if (request.getPriority().isHigherThan(highest)) {
+                highest = request.getPriority();
+            }
+        }
+        return highest;
+    }
+
+    /**
+     * Unregisters a single request, detaching it from its download if any.
+     * The download goes on for the other requests.
+     *
+     * @return false if the request was not registered
+     */
+    public synchronized boolean unregister(DownloadRequest request) {
+        if (!mListeners.containsKey(request)) {
+            return false;
+        }
+        remove(request);
+        return true;
+    }
+
+    /**
+     * Returns the opener currently downloading {@code url}, or null.
+     */
+    public synchronized ShutterbugStreamOpener getDownloader(String url) {
+        Download download = mDownloadsByUrl.get(url);
+        return download != null ? download.mOpener : null;
+    }
+
+    /**
+     * Returns a latch released once the download of {@code url} in progress
+     * is completed or cancelled, or null if {@code url} is not being
+     * downloaded.
+     */
+    public synchronized CountDownLatch getDownloadLatch(String url) {
+        Download download = mDownloadsByUrl.get(url);
+        return download != null ? download.mFinished : null;
+    }
+
+    /**
+     * Returns true if {@code url} is being downloaded.
+     */
+    public synchronized boolean isDownloading(String url) {
+        return mDownloadsByUrl.containsKey(url);
+    }
+
+    /**
+     * Registers {@code opener} as the downloader of {@code url}. Any previous
+     * download of the url must have completed or been cancelled.
+     */
+    public synchronized void putDownloader(String url, ShutterbugStreamOpener opener) {
+        mDownloadsByUrl.put(url, new Download(url, opener));
+    }
+
+    /**
+     * Attaches a registered request to the download of its url, which must
+     * have been registered with {@link #putDownloader}.
+     *
+     * @return false if the request had been cancelled in the meantime
+     */
+    public synchronized boolean attachToDownload(DownloadRequest request, String url) {
+        Download download = mDownloadsByUrl.get(url);
+        if (download == null || !mListeners.containsKey(request) || mDownloadOfRequest.containsKey(request)) {
+            return false;
+        }
+        mCacheQueryCount--;
+        mDownloadOfRequest.put(request, download);
+        download.mRequests.add(request);
+        return true;
+    }
+
+    /**
+     * Returns the requests currently attached to the download run by
+     * {@code opener}, without removing them.
+     */
+    public synchronized List<DownloadRequest> getDownloadRequests(ShutterbugStreamOpener opener) {
+        Download download = mDownloadsByUrl.get(opener.getResourceUrl());
+        if (download == null || download.mOpener != opener) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<DownloadRequest>(download.mRequests);
+    }
+
+    /**
+     * Removes the download run by {@code opener} and unregisters all the
+     * requests attached to it.
+     *
+     * @return the requests that were attached to the download, in the order
+     *         they were attached, with their listener
+     */
+    public synchronized Map<DownloadRequest, ShutterbugManagerListener> completeDownload(ShutterbugStreamOpener opener) {
+        Download download = mDownloadsByUrl.get(opener.getResourceUrl());
+        if (download == null || download.mOpener != opener) {
+            return Collections.emptyMap();
+        }
+        mDownloadsByUrl.remove(download.mUrl);
+        download.mFinished.countDown();
+        Map<DownloadRequest, ShutterbugManagerListener> requests = new LinkedHashMap<DownloadRequest, ShutterbugManagerListener>();
+        for (DownloadRequest request : new ArrayList<DownloadRequest>(download.mRequests)) {
+            requests.put(request, mListeners.get(request));
+            remove(request);
+        }
+        return requests;
+    }
+
+    /**
+     * Unregisters all the requests of {@code listener}.
+     *
+     * @return the openers whose downloads no longer have any request attached.
+     *         They are still registered, for the caller to either let them
+     *         complete or cancel them and {@link #removeDownload remove} them.
+     */
+    public synchronized List<ShutterbugStreamOpener> cancel(ShutterbugManagerListener listener) {
+        Set<DownloadRequest> requests = mRequestsByListener.get(listener);
+        if (requests == null) {
+            return Collections.emptyList();
+        }
+
+        List<ShutterbugStreamOpener> orphanedOpeners = new ArrayList<ShutterbugStreamOpener>();
+        for (DownloadRequest request : new ArrayList<DownloadRequest>(requests)) {
+            Download download = remove(request);
+            if (download != null && download.mRequests.isEmpty() && mDownloadsByUrl.get(download.mUrl) == download) {
+                orphanedOpeners.add(download.mOpener);
+            }
+        }
+        return orphanedOpeners;
+    }
+
+    /**
+     * Removes the download run by {@code opener}, which no request is
+     * attached to any more, so that the next request for its url starts a new
+     * one.
+     */
+    public synchronized void removeDownload(ShutterbugStreamOpener opener) {
+        Download download = mDownloadsByUrl.get(opener.getResourceUrl());
+        if (download != null && download.mOpener == opener && download.mRequests.isEmpty()) {
+            mDownloadsByUrl.remove(download.mUrl);
+            download.mFinished.countDown();
+        }
+    }
+
+    private Download remove(DownloadRequest request) {
+        ShutterbugManagerListener listener = mListeners.remove(request);
+        if (listener == null) {
+            return null;
+        }
+        Set<DownloadRequest> requests = mRequestsByListener.get(listener);
+        if (requests != null) {
+            requests.remove(request);
+            if (requests.isEmpty()) {
+                mRequestsByListener.remove(listener);
+            }
+        }
+
+        Download download = mDownloadOfRequest.remove(request);
+        if (download != null) {
+            download.mRequests.remove(request);
+        } else {
+            mCacheQueryCount--;
+        }
+        return download;
+    }
+
+    /**
+     * Returns the number of requests waiting for the cache to be queried.
+     */
+    public synchronized int getCacheQueryCount() {
+        return mCacheQueryCount;
+    }
+
+    /**
+     * Returns the number of requests attached to a download.
+     */
+    public synchronized int getDownloadRequestCount() {
+        return mDownloadOfRequest.size();
+    }
+
+    /**
+     * Returns the number of urls being downloaded.
+     */
+    public synchronized int getDownloadCount() {
+        return mDownloadsByUrl.size();
+    }
+}
@@ -0,0 +1,57 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.Random;
+
+/**
+ * How many times and how soon a download failing with a
+ * {@link FailureReason#TRANSIENT} error is retried. Retries are spaced by an
+ * exponentially growing delay, randomly shortened by up to a jitter fraction
+ * so that the requests that failed together do not all retry together.
+ */
+public class RetryPolicy {
+    public static final RetryPolicy NO_RETRY = new RetryPolicy(0, 0, 1f, 0, 0f);
+    public static final RetryPolicy DEFAULT  = new RetryPolicy(3, 1000, 2f, 30000, 0.5f);
+
+    private static final Random     sRandom  = new Random();
+
+    private final int               mMaxRetries;
+    private final long              mInitialDelay;
+    private final float             mMultiplier;
+    private final long              mMaxDelay;
+    private final float             mJitter;
+
+    /**
+     * @param initialDelay
+     *            the delay before the first retry, in ms
+     * @param multiplier
+     *            the factor applied to the delay after each retry
+     * @param maxDelay
+     *            the maximum delay between two retries, in ms
+     * @param jitter
+     *            the maximum fraction of the delay randomly taken off, between
+     *            0 and 1
+     */
+    public RetryPolicy(int maxRetries, long initialDelay, float multiplier, long maxDelay, float jitter) {
+        mMaxRetries = maxRetries;
+        mInitialDelay = initialDelay;
+        mMultiplier = multiplier;
+        mMaxDelay = maxDelay;
+        mJitter = Math.max(0f, Math.min(1f, jitter));
+    }
+
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    /**
+     * Returns the delay before the given retry, counted from 1, in ms.
+     */
+    public long getDelay(int retry) {
+        double delay = Math.min(mMaxDelay, mInitialDelay * Math.pow(mMultiplier, retry - 1));
+        double jitter;
+        synchronized (sRandom) {
+            jitter = mJitter * sRandom.nextDouble();
+        }
+        return (long) (delay * (1 - jitter));
+    }
+}
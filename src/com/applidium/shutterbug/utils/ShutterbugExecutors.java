@@ -0,0 +1,157 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.concurrent.Callable;
+
+import android.graphics.Bitmap;
+
+import com.applidium.shutterbug.metrics.ShutterbugMetrics;
+import com.applidium.shutterbug.utils.PriorityExecutor.OverflowPolicy;
+
+/**
+ * The thread pools of the pipeline, each sized for the kind of work it runs:
+ * <ul>
+ * <li>the <strong>network</strong> pool opens connections, which mostly wait
+ * on the server;
+ * <li>the <strong>disk</strong> pool reads and writes the disk cache and
+ * local images. Downloaded bodies are read on the network pool, so that a
+ * slow server does not hold a disk thread;
+ * <li>the <strong>decode</strong> pool decodes bitmaps, one thread per core.
+ * Disk work hands its decodes over through {@link #decode} and moves on
+ * without waiting for them, so that slow I/O never holds a core and decodes
+ * never hold a disk thread. Each queued decode holds the file it reads open,
+ * so its queue is bounded like the disk one;
+ * <li>the <strong>scale</strong> pool scales bitmaps for display.
+ * </ul>
+ * Pools and their queues can be configured by installing other executors
+ * with {@link #setShared} before the first request.
+ */
+public class ShutterbugExecutors {
+    /**
+     * Receives the result of a decode handed over with {@link #decode}.
+     */
+    public interface DecodeCallback {
+        /**
+         * Called on the decode pool with the bitmap, or null if the decode
+         * failed.
+         */
+        void onDecoded(Bitmap bitmap);
+
+        /**
+         * Called on the main thread instead if the decode was dropped before
+         * it ran, to release what it would have read.
+         */
+        void onDropped();
+    }
+
+    private static final int           DEFAULT_NETWORK_THREADS = 5;
+    private static final int           DEFAULT_DISK_THREADS    = 4;
+    // Bounds chosen so that queued work pins at most a few screens of requests
+    private static final int           DISK_QUEUE_CAPACITY     = 64;
+    private static final int           DECODE_QUEUE_CAPACITY   = 32;
+    private static final int           SCALE_QUEUE_CAPACITY    = 16;
+
+    private static ShutterbugExecutors sExecutors;
+
+    private final PriorityExecutor     mNetworkExecutor;
+    private final PriorityExecutor     mDiskExecutor;
+    private final PriorityExecutor     mDecodeExecutor;
+    private final PriorityExecutor     mScaleExecutor;
+
+    /**
+     * Creates pools with the given number of threads. The disk and decode
+     * queues are bounded and drop the oldest prefetches when full, the scale
+     * queue is bounded and merges the work of a same view; the network queue
+     * is unbounded.
+     */
+    public ShutterbugExecutors(int networkThreads, int diskThreads, int decodeThreads, int scaleThreads) {
+        mNetworkExecutor = new PriorityExecutor("Shutterbug network", networkThreads);
+        mDiskExecutor = new PriorityExecutor("Shutterbug disk", diskThreads, DISK_QUEUE_CAPACITY, OverflowPolicy.DROP_OLDEST_PREFETCH);
+        mDecodeExecutor = new PriorityExecutor("Shutterbug decode", decodeThreads, DECODE_QUEUE_CAPACITY, OverflowPolicy.DROP_OLDEST_PREFETCH);
+        mScaleExecutor = new PriorityExecutor("Shutterbug scale", scaleThreads, SCALE_QUEUE_CAPACITY, OverflowPolicy.MERGE_DUPLICATES);
+    }
+
+    /**
+     * Creates the default pools: 5 network and 4 disk threads, a decode
+     * thread per core and a scale thread per two cores.
+     */
+    public static ShutterbugExecutors createDefault() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return new ShutterbugExecutors(DEFAULT_NETWORK_THREADS, DEFAULT_DISK_THREADS, Math.max(1, cores), Math.max(1, cores / 2));
+    }
+
+    public static synchronized ShutterbugExecutors getShared() {
+        if (sExecutors == null) {
+            setShared(createDefault());
+        }
+        return sExecutors;
+    }
+
+    /**
+     * Installs the pools used by all subsequent work. The pools previously
+     * installed finish their queued work, then stop.
+     */
+    public static synchronized void setShared(ShutterbugExecutors executors) {
+        ShutterbugExecutors previous = sExecutors;
+        sExecutors = executors;
+        executors.registerMetrics();
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    private void registerMetrics() {
+        mNetworkExecutor.registerMetrics(ShutterbugMetrics.POOL_NETWORK);
+        mDiskExecutor.registerMetrics(ShutterbugMetrics.POOL_DISK);
+        mDecodeExecutor.registerMetrics(ShutterbugMetrics.POOL_DECODE);
+        mScaleExecutor.registerMetrics(ShutterbugMetrics.POOL_SCALE);
+    }
+
+    private void shutdown() {
+        mNetworkExecutor.shutdown();
+        mDiskExecutor.shutdown();
+        mDecodeExecutor.shutdown();
+        mScaleExecutor.shutdown();
+    }
+
+    public PriorityExecutor getNetworkExecutor() {
+        return mNetworkExecutor;
+    }
+
+    public PriorityExecutor getDiskExecutor() {
+        return mDiskExecutor;
+    }
+
+    public PriorityExecutor getDecodeExecutor() {
+        return mDecodeExecutor;
+    }
+
+    public PriorityExecutor getScaleExecutor() {
+        return mScaleExecutor;
+    }
+
+    /**
+     * Queues {@code decode} on the decode pool and returns right away. Its
+     * result is handed to {@code callback} on the decode thread, which is
+     * where work depending on the bitmap, such as scaling it, belongs. If the
+     * queue overflows and the decode is dropped, the callback is told instead.
+     */
+    public void decode(final Callable<Bitmap> decode, Priority priority, Object tag, final DecodeCallback callback) {
+        mDecodeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                try {
+                    bitmap = decode.call();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                callback.onDecoded(bitmap);
+            }
+        }, priority, tag, new Runnable() {
+            @Override
+            public void run() {
+                callback.onDropped();
+            }
+        });
+    }
+}
@@ -1,26 +1,42 @@
 package com.applidium.shutterbug.utils;
 
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 
 import com.applidium.shutterbug.cache.DiskLruCache.Snapshot;
 import com.applidium.shutterbug.cache.ImageCache;
 import com.applidium.shutterbug.cache.ImageCache.ImageCacheListener;
 import com.applidium.shutterbug.downloader.ShutterbugAssetOpener;
 import com.applidium.shutterbug.downloader.ShutterbugDownloader;
+import com.applidium.shutterbug.downloader.ShutterbugFileOpener;
 import com.applidium.shutterbug.downloader.ShutterbugStreamOpener;
 import com.applidium.shutterbug.downloader.ShutterbugStreamOpener.ShutterbugOnOpenedListener;
+import com.applidium.shutterbug.metrics.MetricsSnapshot;
+import com.applidium.shutterbug.metrics.RequestEventListener;
+import com.applidium.shutterbug.metrics.RequestEventListener.Outcome;
+import com.applidium.shutterbug.metrics.ShutterbugMetrics;
+import com.applidium.shutterbug.metrics.Stage;
+import com.applidium.shutterbug.metrics.StageTimings;
 import com.techsmith.utilities.Bitmaps;
 import com.techsmith.utilities.IO;
 import com.techsmith.utilities.ThreadPoolAsyncTaskRunner;
@@ -36,21 +52,71 @@ public class ShutterbugManager implements ImageCacheListener, ShutterbugOnOpened
         int getDesiredHeight();
     }
     
+    // Fraction of a download above which a cancelled download still completes
+    // to disk rather than throwing away the bytes already transferred
+    private static final float                NEARLY_COMPLETE_RATIO   = 0.9f;
+    // How often a wait for another download is checked for cancellation
+    private static final long                 JOIN_POLL_MILLIS        = 50;
+
     private static ShutterbugManager          sImageManager;
 
     private Context                           mContext;
-    private List<String>                      mFailedUrls             = Collections.synchronizedList( new ArrayList<String>() );
-    private List<ShutterbugManagerListener>   mCacheListeners         = Collections.synchronizedList( new ArrayList<ShutterbugManagerListener>() );
-    private List<String>                      mCacheUrls              = Collections.synchronizedList( new ArrayList<String>() );
-    private Map<String, ShutterbugStreamOpener> mDownloadersMap       = new ConcurrentHashMap<String, ShutterbugStreamOpener>();
-    private List<DownloadRequest>             mDownloadRequests       = Collections.synchronizedList( new ArrayList<DownloadRequest>() );
-    private List<ShutterbugManagerListener>   mDownloadImageListeners = Collections.synchronizedList( new ArrayList<ShutterbugManagerListener>() );
-    private List<ShutterbugStreamOpener>      mDownloaders            = Collections.synchronizedList( new ArrayList<ShutterbugStreamOpener>() );
-
-    final static private int                  LISTENER_NOT_FOUND      = -1;
+    private volatile NegativeCache            mNegativeCache          = new NegativeCache();
+    private volatile RetryPolicy              mDefaultRetryPolicy     = RetryPolicy.DEFAULT;
+    private volatile UrlRewriter              mUrlRewriter;
+    // Retries already made by the downloads waiting to be retried, main thread only
+    private Map<ShutterbugStreamOpener, Integer> mRetryCounts         = new IdentityHashMap<ShutterbugStreamOpener, Integer>();
+    private Handler                           mHandler                = new Handler(Looper.getMainLooper());
+    // Tasks storing and decoding opened streams, main thread only
+    private Map<ShutterbugStreamOpener, InputStreamHandlingTask> mHandlingTasks = new IdentityHashMap<ShutterbugStreamOpener, InputStreamHandlingTask>();
+    private volatile boolean                  mFinishNearlyCompleteDownloads = true;
+    private RequestRegistry                   mRegistry               = new RequestRegistry();
+    private InlineLoader                      mInlineLoader;
+    // Downloads run by fetch() and loadSync(), which they join
+    private ConcurrentHashMap<String, CountDownLatch> mInlineDownloads = new ConcurrentHashMap<String, CountDownLatch>();
+    private ShutterbugMetrics                 mMetrics                = ShutterbugMetrics.getSharedMetrics();
 
     public ShutterbugManager(Context context) {
         mContext = context.getApplicationContext();
+        mInlineLoader = new InlineLoader(mContext);
+        registerMetrics();
+    }
+
+    private void registerMetrics() {
+        mMetrics.registerGauge(ShutterbugMetrics.DOWNLOADS_IN_FLIGHT, new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mRegistry.getDownloadCount();
+            }
+        });
+        mMetrics.registerGauge(ShutterbugMetrics.QUEUE_CACHE_QUERIES, new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mRegistry.getCacheQueryCount();
+            }
+        });
+        mMetrics.registerGauge(ShutterbugMetrics.QUEUE_DOWNLOAD_LISTENERS, new ShutterbugMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return mRegistry.getDownloadRequestCount();
+            }
+        });
+    }
+
+    /**
+     * Returns a copy of the current cache, download and latency metrics of the
+     * whole library.
+     */
+    public MetricsSnapshot getMetricsSnapshot() {
+        return mMetrics.snapshot();
+    }
+
+    /**
+     * Sets all the metrics counters back to zero and clears the latency
+     * histograms.
+     */
+    public void resetMetrics() {
+        mMetrics.reset();
     }
 
     public static ShutterbugManager getSharedImageManager(Context context) {
@@ -61,217 +127,1179 @@ public class ShutterbugManager implements ImageCacheListener, ShutterbugOnOpened
     }
 
     public void download(String url, ShutterbugManagerListener listener) {
-        // TODO: Add an option (per URL?) to enable/disable tracking of failed downloads
-        //if (url == null || listener == null || mFailedUrls.contains(url)) {
+        download(url, listener, Priority.VISIBLE);
+    }
+
+    /**
+     * Fetches the image at {@code url} for {@code listener}. Queued work of
+     * higher priority is started first, and the newest requests first within
+     * a priority.
+     */
+    public void download(String url, ShutterbugManagerListener listener, Priority priority) {
+        download(url, listener, priority, null);
+    }
+
+    /**
+     * Fetches the image at {@code url} for {@code listener}, retrying
+     * transient failures according to {@code retryPolicy}, or to the default
+     * policy if it is null. Urls that recently failed are failed immediately.
+     */
+    public void download(String url, ShutterbugManagerListener listener, Priority priority, RetryPolicy retryPolicy) {
         if (url == null || listener == null) {
             return;
         }
+        String variantUrl = getVariantUrl(url, listener.getDesiredWidth(), listener.getDesiredHeight());
+        if (isKnownFailure(variantUrl)) {
+            listener.onImageFailure(this, url);
+            return;
+        }
+
+        DownloadRequest downloadRequest = new DownloadRequest(variantUrl, listener, priority);
+        downloadRequest.setRequestedUrl(url);
+        downloadRequest.setRetryPolicy(retryPolicy);
+        register(downloadRequest, listener);
+        ImageCache.getSharedImageCache(mContext).queryCache(variantUrl, this, downloadRequest);
+    }
+
+    /**
+     * Installs the rewriter mapping images to variants of the size they are
+     * requested at, or null to always download the originals.
+     */
+    public void setUrlRewriter(UrlRewriter urlRewriter) {
+        mUrlRewriter = urlRewriter;
+    }
+
+    public UrlRewriter getUrlRewriter() {
+        return mUrlRewriter;
+    }
 
-        mCacheListeners.add(listener);
-        mCacheUrls.add(url);
-        ImageCache.getSharedImageCache(mContext).queryCache(url, this, new DownloadRequest(url, listener));
+    /**
+     * Returns the url downloaded and cached for the image at {@code url}
+     * requested at the given size: the variant of the {@link UrlRewriter} if
+     * it has one, otherwise {@code url} itself.
+     */
+    public String getVariantUrl(String url, int width, int height) {
+        UrlRewriter urlRewriter = mUrlRewriter;
+        if (urlRewriter == null || url == null || width <= 0 || height <= 0) {
+            return url;
+        }
+        String variantUrl = urlRewriter.rewrite(url, width, height);
+        return variantUrl != null ? variantUrl : url;
+    }
+
+    private ImageRequest getVariantRequest(ImageRequest request) {
+        String variantUrl = getVariantUrl(request.getUrl(), request.getWidth(), request.getHeight());
+        if (variantUrl == request.getUrl()) {
+            return request;
+        }
+        return new ImageRequest(variantUrl, request.getWidth(), request.getHeight(), request.getPriority());
+    }
+
+    private void register(DownloadRequest downloadRequest, ShutterbugManagerListener listener) {
+        mRegistry.register(downloadRequest, listener);
+        RequestEventListener eventListener = mMetrics.getRequestEventListener();
+        if (eventListener != null && downloadRequest.getStageTimings() != null) {
+            eventListener.onRequestStarted(downloadRequest.getId(), downloadRequest.getUrl(), downloadRequest.getCreatedAt());
+        }
+    }
+
+    /**
+     * Reports the stages of a finishing request, including those of the
+     * download it was attached to, if any.
+     * 
+     * @return the start of the delivery
+     */
+    private long beforeDelivery(DownloadRequest downloadRequest, StageTimings downloadTimings, StageTimings decodeTimings) {
+        RequestEventListener eventListener = mMetrics.getRequestEventListener();
+        StageTimings timings = downloadRequest.getStageTimings();
+        if (eventListener != null && timings != null) {
+            timings.dispatch(eventListener, downloadRequest.getId());
+            if (downloadTimings != null) {
+                downloadTimings.dispatch(eventListener, downloadRequest.getId());
+            }
+            if (decodeTimings != null) {
+                decodeTimings.dispatch(eventListener, downloadRequest.getId());
+            }
+        }
+        return System.nanoTime();
+    }
+
+    private void afterDelivery(DownloadRequest downloadRequest, Outcome outcome, long deliveryStart) {
+        long now = System.nanoTime();
+        mMetrics.recordLatency(Stage.DELIVERY, (now - deliveryStart) / 1000000L);
+        RequestEventListener eventListener = mMetrics.getRequestEventListener();
+        if (eventListener != null && downloadRequest.getStageTimings() != null) {
+            eventListener.onStage(downloadRequest.getId(), Stage.DELIVERY, deliveryStart, now);
+            eventListener.onRequestFinished(downloadRequest.getId(), outcome, now);
+        }
+    }
+
+    private boolean isKnownFailure(String url) {
+        return getKnownFailure(url) != null;
+    }
+
+    private FailureReason getKnownFailure(String url) {
+        NegativeCache negativeCache = mNegativeCache;
+        FailureReason reason = negativeCache != null ? negativeCache.get(url) : null;
+        if (reason != null) {
+            mMetrics.increment(ShutterbugMetrics.DOWNLOADS_NEGATIVE_HITS);
+        }
+        return reason;
+    }
+
+    private void rememberFailure(String url, FailureReason reason) {
+        NegativeCache negativeCache = mNegativeCache;
+        // Neither says anything about the url itself
+        if (negativeCache != null && reason != FailureReason.DROPPED && reason != FailureReason.NO_SPACE) {
+            negativeCache.put(url, reason);
+        }
+    }
+
+    /**
+     * Sets the cache of recently failed urls, or null to stop remembering
+     * failures.
+     */
+    public void setNegativeCache(NegativeCache negativeCache) {
+        mNegativeCache = negativeCache;
+    }
+
+    public NegativeCache getNegativeCache() {
+        return mNegativeCache;
+    }
+
+    /**
+     * Sets the retry policy of the requests that do not have their own.
+     */
+    public void setDefaultRetryPolicy(RetryPolicy retryPolicy) {
+        mDefaultRetryPolicy = retryPolicy != null ? retryPolicy : RetryPolicy.NO_RETRY;
     }
     
+    /**
+     * Fetches {@code urls} ahead of time, at {@link Priority#BACKGROUND}, into
+     * the disk cache or, for {@link CacheTier#MEMORY}, also into the memory
+     * cache once decoded at the given size. Urls already cached in the target
+     * tier or being downloaded are skipped. Must be called on the main thread.
+     * 
+     * @return the group of prefetches, to be cancelled once they are no longer
+     *         needed
+     */
+    public PrefetchGroup prefetch(List<String> urls, int width, int height, CacheTier targetTier) {
+        PrefetchGroup group = new PrefetchGroup(this, width, height);
+        ImageCache imageCache = ImageCache.getSharedImageCache(mContext);
+        boolean diskOnly = targetTier == CacheTier.DISK;
+        Set<String> seenUrls = new HashSet<String>();
+        for (String requestedUrl : urls) {
+            String url = getVariantUrl(requestedUrl, width, height);
+            if (url == null || !seenUrls.add(url) || mRegistry.isDownloading(url) || isKnownFailure(url)) {
+                group.skip();
+                continue;
+            }
+            boolean isCached;
+            if (diskOnly) {
+                // Only remote images are stored on disk, local files and assets
+                // are read in place
+                isCached = !url.startsWith("http") || imageCache.hasKeyOnDisk(url);
+            } else {
+                isCached = imageCache.hasKeyInMemory(url, width, height) || imageCache.hasKeyInMemory(url);
+            }
+            if (isCached) {
+                group.skip();
+                continue;
+            }
+
+            ShutterbugManagerListener listener = group.newEntry();
+            DownloadRequest downloadRequest = new DownloadRequest(url, listener, Priority.BACKGROUND);
+            downloadRequest.setRequestedUrl(requestedUrl);
+            downloadRequest.setDiskOnly(diskOnly);
+            if (diskOnly) {
+                // Already known not to be on disk, no need to look it up
+                startDownload(downloadRequest, listener);
+            } else {
+                register(downloadRequest, listener);
+                imageCache.queryCache(url, this, downloadRequest);
+            }
+        }
+        return group;
+    }
+
+    /**
+     * Fetches a batch of images. Memory hits are delivered before this method
+     * returns, the other items are looked up on disk in chunks and those
+     * missing from the disk are downloaded, at most
+     * {@code maxConcurrentDownloads} at a time. Must be called on the main
+     * thread.
+     * 
+     * @return the batch, to be cancelled once its images are no longer needed
+     */
+    public BatchFetch fetch(List<BatchFetch.Item> items, int maxConcurrentDownloads, Priority priority,
+            BatchFetch.BatchListener listener) {
+        List<BatchFetch.Item> variantItems = new ArrayList<BatchFetch.Item>(items.size());
+        for (BatchFetch.Item item : items) {
+            String variantUrl = getVariantUrl(item.getUrl(), item.getWidth(), item.getHeight());
+            variantItems.add(variantUrl == item.getUrl() ? item
+                    : new BatchFetch.Item(variantUrl, item.getWidth(), item.getHeight()));
+        }
+        BatchFetch batch = new BatchFetch(this, variantItems, maxConcurrentDownloads, priority, listener);
+        batch.start(ImageCache.getSharedImageCache(mContext));
+        return batch;
+    }
+
+    /**
+     * Fetches an image without a listener. The future completes on a pool
+     * thread, never requiring a Looper, and can be called from any thread.
+     * Memory hits complete it before this method returns. Otherwise the disk
+     * lookup, download and decode each run on their pool, and cancelling the
+     * future drops or stops them. Failed downloads are not retried.
+     * <p>
+     * The future fails with an {@link ImageFetchException}.
+     */
+    public ImageFuture<Bitmap> fetch(ImageRequest request) {
+        request = getVariantRequest(request);
+        Bitmap bitmap = mInlineLoader.getFromMemory(request);
+        if (bitmap != null) {
+            ImageFuture<Bitmap> future = new ImageFuture<Bitmap>();
+            future.complete(bitmap);
+            return future;
+        }
+        return new InlineFetch<Bitmap>(request) {
+            @Override
+            Callable<Bitmap> getFromDisk() {
+                return mInlineLoader.findOnDisk(mRequest);
+            }
+        }.start();
+    }
+
+    /**
+     * Same as {@link #fetch(ImageRequest)} for the encoded bytes of the
+     * full-size image, as they were downloaded. The size of the request is
+     * ignored.
+     */
+    public ImageFuture<byte[]> fetchEncoded(ImageRequest request) {
+        return new InlineFetch<byte[]>(request) {
+            @Override
+            Callable<byte[]> getFromDisk() {
+                final byte[] bytes = mInlineLoader.getEncodedFromDisk(mRequest);
+                if (bytes == null) {
+                    return null;
+                }
+                return new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() {
+                        return bytes;
+                    }
+                };
+            }
+
+            @Override
+            boolean needsDecode() {
+                return false;
+            }
+        }.start();
+    }
+
+    /**
+     * Loads an image on the calling thread, looking it up in the memory,
+     * encoded and disk caches, then downloading it, all without leaving the
+     * calling thread. If the image is already being downloaded by another
+     * request, that download is waited for instead of starting another one.
+     * Failed downloads are not retried. Must not be called on the main thread.
+     *
+     * @param width
+     *            the width to load the image at, or 0 for the full-size image
+     * @param height
+     *            the height to load the image at, or 0 for the full-size image
+     * @param timeoutMillis
+     *            the time after which to give up. Blocking reads can overrun
+     *            it by up to that time again.
+     * @return the image, never null
+     * @throws ImageFetchException
+     *             if the image could not be loaded
+     * @throws TimeoutException
+     *             if the image could not be loaded in time
+     * @throws InterruptedException
+     *             if the calling thread was interrupted while waiting for
+     *             another download
+     */
+    public Bitmap loadSync(String url, int width, int height, long timeoutMillis)
+            throws ImageFetchException, TimeoutException, InterruptedException {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            throw new IllegalStateException("loadSync() would block the main thread");
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        ImageRequest request = getVariantRequest(new ImageRequest(url, width, height, Priority.IMMEDIATE));
+        // Downloads and failures are keyed by the url actually downloaded
+        String variantUrl = request.getUrl();
+        Bitmap bitmap = mInlineLoader.getFromMemory(request);
+        if (bitmap == null) {
+            bitmap = mInlineLoader.getFromDisk(request);
+        }
+        if (bitmap != null) {
+            return bitmap;
+        }
+        if (InlineLoader.isReadInPlace(variantUrl)) {
+            throw new ImageFetchException(url, FailureReason.NOT_FOUND);
+        }
+
+        FailureReason reason = getKnownFailure(variantUrl);
+        if (reason != null) {
+            throw new ImageFetchException(url, reason);
+        }
+        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remainingMillis <= 0) {
+            throw new TimeoutException("Timed out loading " + url);
+        }
+        CancellationToken deadlineToken = new CancellationToken() {
+            @Override
+            public boolean isCancellationRequested() {
+                return System.nanoTime() > deadline || Thread.currentThread().isInterrupted();
+            }
+        };
+        reason = downloadInline(mInlineLoader.createOpener(request, (int) Math.min(Integer.MAX_VALUE, remainingMillis)), deadlineToken);
+        if (Thread.interrupted()) {
+            throw new InterruptedException("Interrupted loading " + url);
+        }
+        if (reason != null && deadlineToken.isCancellationRequested()) {
+            throw new TimeoutException("Timed out loading " + url);
+        }
+        if (reason != null) {
+            throw new ImageFetchException(url, reason);
+        }
+        bitmap = mInlineLoader.getFromDisk(request);
+        if (bitmap == null) {
+            throw new ImageFetchException(url, FailureReason.TRANSIENT);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Downloads the image of {@code opener} to disk on the calling thread, or
+     * joins the download of the same url already running, and remembers
+     * failures. Other inline downloads of the url join this one. If a joined
+     * download is cancelled rather than failing, the image is downloaded
+     * here, unless {@code token} requests cancellation meanwhile.
+     *
+     * @return null once the image is stored, or why it could not be
+     */
+    private FailureReason downloadInline(ShutterbugStreamOpener opener, CancellationToken token) {
+        String url = opener.getResourceUrl();
+        CountDownLatch finished = new CountDownLatch(1);
+        for (;;) {
+            CountDownLatch running = mRegistry.getDownloadLatch(url);
+            if (running == null) {
+                running = mInlineDownloads.putIfAbsent(url, finished);
+            }
+            if (running == null) {
+                break;
+            }
+            mMetrics.increment(ShutterbugMetrics.DOWNLOADS_COALESCED);
+            FailureReason reason = joinDownload(running, url, token);
+            if (reason != null || mInlineLoader.isOnDisk(url)) {
+                return reason;
+            }
+            if (token.isCancellationRequested() || Thread.currentThread().isInterrupted()) {
+                return FailureReason.TRANSIENT;
+            }
+            // Nothing failed, the joined download was cancelled
+        }
+        try {
+            FailureReason reason = mInlineLoader.downloadToDisk(opener, token);
+            if (reason != null && (mInlineLoader.isBeingStored(url) || mInlineLoader.isOnDisk(url))) {
+                // A download started meanwhile holds the disk entry, wait
+                // for it rather than failing
+                reason = joinDownload(mRegistry.getDownloadLatch(url), url, token);
+                return reason != null || mInlineLoader.isOnDisk(url) ? reason : FailureReason.TRANSIENT;
+            }
+            if (reason != null && !token.isCancellationRequested()) {
+                rememberFailure(url, reason);
+            }
+            return reason;
+        } finally {
+            mInlineDownloads.remove(url, finished);
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Waits until the download behind {@code download}, if any, is finished
+     * and the disk entry of {@code url} is no longer being written, or until
+     * {@code token} requests cancellation. Both waits wake up as soon as
+     * what they wait for completes.
+     *
+     * @return why the download failed if it is known, or null
+     */
+    private FailureReason joinDownload(CountDownLatch download, String url, CancellationToken token) {
+        try {
+            while (download != null && !token.isCancellationRequested()
+                    && !download.await(JOIN_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                // Wakes up to check for cancellation
+            }
+            while (!token.isCancellationRequested() && !mInlineLoader.awaitStored(url, JOIN_POLL_MILLIS)) {
+                // Wakes up to check for cancellation
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return mInlineLoader.isOnDisk(url) ? null : getKnownFailure(url);
+    }
+
+    /**
+     * Registers {@code downloadRequest} and downloads its image without
+     * querying the cache first, for callers that already know it is not
+     * cached.
+     */
+    void startDownload(DownloadRequest downloadRequest, ShutterbugManagerListener listener) {
+        if (isKnownFailure(downloadRequest.getUrl())) {
+            listener.onImageFailure(this, downloadRequest.getRequestedUrl());
+            return;
+        }
+        register(downloadRequest, listener);
+        onImageNotFound(ImageCache.getSharedImageCache(mContext), ImageCache.getCacheKey(downloadRequest.getUrl()),
+                downloadRequest);
+    }
+
     public void remove(String url) {
        ImageCache.getSharedImageCache(mContext).remove(url);
+       NegativeCache negativeCache = mNegativeCache;
+       if (negativeCache != null) {
+           negativeCache.remove(url);
+       }
     }
     
     public List<Bitmap> removeByPrefix(String urlPrefix) {
        return ImageCache.getSharedImageCache(mContext).removeByPrefix(urlPrefix);
     }
 
-    private int getListenerIndex(ShutterbugManagerListener listener, String url) {
-        for (int index = 0; index < mCacheListeners.size(); index++) {
-            if (mCacheListeners.get(index) == listener && mCacheUrls.get(index).equals(url)) {
-                return index;
-            }
-        }
-        return LISTENER_NOT_FOUND;
-    }
-
     @Override
     public void onImageFound(ImageCache imageCache, Bitmap bitmap, String key, DownloadRequest downloadRequest) {
-        final String url = downloadRequest.getUrl();
-        final ShutterbugManagerListener listener = downloadRequest.getListener();
-
-        int idx = getListenerIndex(listener, url);
-        if (idx == LISTENER_NOT_FOUND) {
+        final ShutterbugManagerListener listener = mRegistry.getListener(downloadRequest);
+        if (listener == null || !mRegistry.completeCacheQuery(downloadRequest)) {
             // Request has since been canceled
             return;
         }
 
-        listener.onImageSuccess(this, bitmap, url);
-        mCacheListeners.remove(idx);
-        mCacheUrls.remove(idx);
+        StageTimings timings = downloadRequest.getStageTimings();
+        Outcome outcome = timings != null && timings.contains(Stage.DISK_READ) ? Outcome.DISK_HIT : Outcome.MEMORY_HIT;
+        long deliveryStart = beforeDelivery(downloadRequest, null, null);
+        listener.onImageSuccess(this, bitmap, downloadRequest.getRequestedUrl());
+        afterDelivery(downloadRequest, outcome, deliveryStart);
     }
 
     @Override
     public void onImageNotFound(ImageCache imageCache, String key, DownloadRequest downloadRequest) {
         final String url = downloadRequest.getUrl();
-        final ShutterbugManagerListener listener = downloadRequest.getListener();
-
-        int idx = getListenerIndex(listener, url);
-        if (idx == LISTENER_NOT_FOUND) {
-            // Request has since been canceled
-            return;
-        }
-        mCacheListeners.remove(idx);
-        mCacheUrls.remove(idx);
 
         // Share the same downloader for identical URLs so we don't download the
         // same URL several times
-        ShutterbugStreamOpener downloader = mDownloadersMap.get(url);
-        if (downloader == null) {
-            
-            if ( AssetParser.isAssetUri( url ) ) {
-                downloader = new ShutterbugAssetOpener(mContext, this, downloadRequest);
-            } else {
-                downloader = new ShutterbugDownloader(this, downloadRequest);
+        ShutterbugStreamOpener downloader;
+        boolean isNewDownload;
+        synchronized (mRegistry) {
+            if (!mRegistry.isRegistered(downloadRequest)) {
+                // Request has since been canceled
+                return;
             }
-            
+
+            downloader = mRegistry.getDownloader(url);
+            isNewDownload = downloader == null;
+            if (isNewDownload) {
+                if ( AssetParser.isAssetUri( url ) ) {
+                    downloader = new ShutterbugAssetOpener(mContext, this, downloadRequest);
+                } else if (InlineLoader.isLocalFile(url)) {
+                    downloader = new ShutterbugFileOpener(this, downloadRequest);
+                } else {
+                    ShutterbugDownloader httpDownloader = new ShutterbugDownloader(this, downloadRequest);
+                    httpDownloader.setResumeCache(ImageCache.getSharedImageCache(mContext));
+                    downloader = httpDownloader;
+                }
+                mRegistry.putDownloader(url, downloader);
+            }
+            mRegistry.attachToDownload(downloadRequest, url);
+        }
+
+        if (isNewDownload) {
+            mMetrics.increment(ShutterbugMetrics.DOWNLOADS_STARTED);
             downloader.start();
-            mDownloadersMap.put(url, downloader);
+        } else {
+            mMetrics.increment(ShutterbugMetrics.DOWNLOADS_COALESCED);
+        }
+    }
+
+    @Override
+    public void onImageQueryDropped(ImageCache imageCache, String key, DownloadRequest downloadRequest) {
+        ShutterbugManagerListener listener = mRegistry.getListener(downloadRequest);
+        if (mRegistry.unregister(downloadRequest) && listener != null) {
+            long deliveryStart = beforeDelivery(downloadRequest, null, null);
+            listener.onImageFailure(this, downloadRequest.getRequestedUrl());
+            afterDelivery(downloadRequest, Outcome.FAILED, deliveryStart);
         }
-        mDownloadRequests.add(downloadRequest);
-        mDownloadImageListeners.add(listener);
-        mDownloaders.add(downloader);
     }
 
     @Override
     public void onImageOpenSuccess(final ShutterbugStreamOpener downloader, final InputStream inputStream,
             final DownloadRequest downloadRequest) {
 
+        Priority priority = mRegistry.getDownloadPriority(downloader);
+        final InputStreamHandlingTask task = new InputStreamHandlingTask(downloader, downloadRequest, inputStream);
+        mHandlingTasks.put(downloader, task);
         ThreadPoolAsyncTaskRunner.runTaskOnPool(
-              ThreadPoolAsyncTaskRunner.THUMBNAIL_THREAD_POOL,
-              new InputStreamHandlingTask(downloader, downloadRequest),
-              inputStream);
+              getHandlingExecutor(downloader).withPriority(priority != null ? priority : downloadRequest.getPriority(), downloader, new Runnable() {
+                  @Override
+                  public void run() {
+                      if (mHandlingTasks.get(downloader) == task) {
+                          mHandlingTasks.remove(downloader);
+                      }
+                      // Closing a network stream may block
+                      AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                          @Override
+                          public void run() {
+                              IO.closeQuietly(inputStream);
+                          }
+                      });
+                      onDownloadFailure(downloader, FailureReason.DROPPED);
+                  }
+              }),
+              task,
+              (Object[]) null);
+    }
+
+    /**
+     * Returns the pool reading the streams of {@code downloader}: response
+     * bodies are read on the network pool, local files on the disk pool.
+     */
+    private static PriorityExecutor getHandlingExecutor(ShutterbugStreamOpener downloader) {
+        ShutterbugExecutors executors = ShutterbugExecutors.getShared();
+        return downloader instanceof ShutterbugDownloader ? executors.getNetworkExecutor() : executors.getDiskExecutor();
+    }
+
+    /**
+     * Sets whether a cancelled download that has already transferred most of
+     * its bytes is still completed to the disk cache. True by default.
+     */
+    public void setFinishNearlyCompleteDownloads(boolean finish) {
+        mFinishNearlyCompleteDownloads = finish;
     }
 
     @Override
     public void onImageOpenFailure(ShutterbugStreamOpener downloader, DownloadRequest downloadRequest) {
-        for (int idx = mDownloaders.size() - 1; idx >= 0; idx--) {
-            final int uidx = idx;
-            ShutterbugStreamOpener aDownloader = mDownloaders.get(uidx);
-            if (aDownloader == downloader) {
-                ShutterbugManagerListener listener = mDownloadImageListeners.get(uidx);
-                listener.onImageFailure(this, downloadRequest.getUrl());
-                mDownloaders.remove(uidx);
-                mDownloadImageListeners.remove(uidx);
-                mDownloadRequests.remove(uidx);
+        onDownloadFailure(downloader, downloader.getFailureReason());
+    }
+
+    /**
+     * Retries a download that failed for a transient reason, as long as one
+     * of its requests allows it. Requests whose policy does not allow another
+     * retry fail right away. Once no retry is left, the url is remembered in
+     * the negative cache and the remaining requests fail.
+     */
+    private void onDownloadFailure(final ShutterbugStreamOpener downloader, FailureReason reason) {
+        final String url = downloader.getResourceUrl();
+        if (reason == FailureReason.TRANSIENT) {
+            Integer retryCount = mRetryCounts.get(downloader);
+            int retry = (retryCount != null ? retryCount : 0) + 1;
+            long delay = -1;
+            for (DownloadRequest request : mRegistry.getDownloadRequests(downloader)) {
+                RetryPolicy policy = request.getRetryPolicy() != null ? request.getRetryPolicy() : mDefaultRetryPolicy;
+                if (retry <= policy.getMaxRetries()) {
+                    long requestDelay = policy.getDelay(retry);
+                    delay = delay < 0 ? requestDelay : Math.min(delay, requestDelay);
+                } else {
+                    ShutterbugManagerListener listener = mRegistry.getListener(request);
+                    if (mRegistry.unregister(request) && listener != null) {
+                        long deliveryStart = beforeDelivery(request, downloader.getStageTimings(), null);
+                        listener.onImageFailure(this, request.getRequestedUrl());
+                        afterDelivery(request, Outcome.FAILED, deliveryStart);
+                    }
+                }
+            }
+            if (delay >= 0) {
+                mRetryCounts.put(downloader, retry);
+                mMetrics.increment(ShutterbugMetrics.DOWNLOADS_RETRIED);
+                mHandler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mRegistry.getDownloadRequests(downloader).isEmpty()) {
+                            // Cancelled while waiting
+                            mRetryCounts.remove(downloader);
+                            mRegistry.completeDownload(downloader);
+                        } else {
+                            downloader.start();
+                        }
+                    }
+                }, delay);
+                return;
             }
         }
-        mDownloadersMap.remove(downloadRequest.getUrl());
 
+        mRetryCounts.remove(downloader);
+        rememberFailure(url, reason);
+        mMetrics.increment(ShutterbugMetrics.DOWNLOADS_FAILED);
+        for (Map.Entry<DownloadRequest, ShutterbugManagerListener> request : mRegistry.completeDownload(downloader).entrySet()) {
+            long deliveryStart = beforeDelivery(request.getKey(), downloader.getStageTimings(), null);
+            request.getValue().onImageFailure(this, request.getKey().getRequestedUrl());
+            afterDelivery(request.getKey(), Outcome.FAILED, deliveryStart);
+        }
     }
 
-    private class InputStreamHandlingTask extends AsyncTask<Object, Void, Bitmap> {
+    /**
+     * A fetch running the stages of the {@link InlineLoader} on the disk,
+     * network and decode pools, and completing its future on the pool thread.
+     */
+    private abstract class InlineFetch<T> {
+        final ImageRequest   mRequest;
+        final ImageFuture<T> mFuture = new ImageFuture<T>();
+
+        InlineFetch(ImageRequest request) {
+            mRequest = request;
+        }
+
+        /**
+         * Reads the image from disk if it is cached there, and returns the
+         * work turning it into the result, or null.
+         */
+        abstract Callable<T> getFromDisk();
+
+        /**
+         * Returns true if the work returned by {@link #getFromDisk} decodes
+         * the image, and runs on the decode pool.
+         */
+        boolean needsDecode() {
+            return true;
+        }
+
+        ImageFuture<T> start() {
+            final ShutterbugExecutors executors = ShutterbugExecutors.getShared();
+            mFuture.addListener(new ImageFuture.Listener<T>() {
+                @Override
+                public void onDone(ImageFuture<T> future) {
+                    if (future.isCancelled()) {
+                        executors.getDiskExecutor().cancel(future);
+                        executors.getNetworkExecutor().cancel(future);
+                        executors.getDecodeExecutor().cancel(future);
+                    }
+                }
+            });
+            executors.getDiskExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    lookUp(executors);
+                }
+            }, mRequest.getPriority(), mFuture, newDroppedCallback());
+            return mFuture;
+        }
+
+        private Runnable newDroppedCallback() {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    fail(FailureReason.DROPPED);
+                }
+            };
+        }
+
+        private void fail(FailureReason reason) {
+            mFuture.fail(new ImageFetchException(mRequest.getUrl(), reason));
+        }
+
+        /**
+         * Completes the future with the result of {@code work}, handed over to
+         * the decode pool if it decodes, or runs {@code onFailure} if there is
+         * none.
+         */
+        private void complete(final Callable<T> work, final Runnable onFailure) {
+            Runnable completion = new Runnable() {
+                @Override
+                public void run() {
+                    if (mFuture.isCancelled()) {
+                        return;
+                    }
+                    T result = null;
+                    try {
+                        result = work.call();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    if (result != null) {
+                        mFuture.complete(result);
+                    } else {
+                        onFailure.run();
+                    }
+                }
+            };
+            if (needsDecode()) {
+                ShutterbugExecutors.getShared().getDecodeExecutor().execute(completion, mRequest.getPriority(), mFuture,
+                        newDroppedCallback());
+            } else {
+                completion.run();
+            }
+        }
+
+        private void lookUp(final ShutterbugExecutors executors) {
+            if (mFuture.isCancelled()) {
+                return;
+            }
+            Runnable onMissing = new Runnable() {
+                @Override
+                public void run() {
+                    if (InlineLoader.isReadInPlace(mRequest.getUrl())) {
+                        fail(FailureReason.NOT_FOUND);
+                        return;
+                    }
+                    executors.getNetworkExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            download();
+                        }
+                    }, mRequest.getPriority(), mFuture, newDroppedCallback());
+                }
+            };
+            Callable<T> work = getFromDisk();
+            if (work != null) {
+                complete(work, onMissing);
+            } else {
+                onMissing.run();
+            }
+        }
+
+        private void download() {
+            if (mFuture.isCancelled()) {
+                return;
+            }
+            String url = mRequest.getUrl();
+            FailureReason reason = getKnownFailure(url);
+            if (reason == null) {
+                final ShutterbugStreamOpener opener = mInlineLoader.createOpener(mRequest);
+                mFuture.addListener(new ImageFuture.Listener<T>() {
+                    @Override
+                    public void onDone(ImageFuture<T> future) {
+                        if (future.isCancelled()) {
+                            opener.cancel();
+                        }
+                    }
+                });
+                reason = downloadInline(opener, mFuture);
+                if (mFuture.isCancelled()) {
+                    return;
+                }
+            }
+            if (reason != null) {
+                fail(reason);
+                return;
+            }
+            Runnable onFailure = new Runnable() {
+                @Override
+                public void run() {
+                    fail(FailureReason.TRANSIENT);
+                }
+            };
+            Callable<T> work = getFromDisk();
+            if (work != null) {
+                complete(work, onFailure);
+            } else {
+                onFailure.run();
+            }
+        }
+    }
+
+    /**
+     * Stores an opened stream, then hands its decode over to the decode pool,
+     * which notifies the requests. Remote streams are read on the network
+     * pool, local ones on the disk pool.
+     */
+    private class InputStreamHandlingTask extends AsyncTask<Object, Void, Boolean> implements CancellationToken {
         ShutterbugStreamOpener mDownloader;
         DownloadRequest        mDownloadRequest;
-        int                    mViewWidth;
-        int                    mViewHeight;
+        CountingInputStream    mInStream;
+        FileInputStream        mFileStream;
+        InputStream            mAssetStream;
+        long                   mExpectedLength;
+        DecodePlan             mDecodePlan;
+        boolean                mStoredOnly;
+        FailureReason          mFailureReason = FailureReason.TRANSIENT;
+        StageTimings           mStageTimings;
+        long                   mQueuedAt;
+        // Set by the decode, read once it is done
+        int                    mSampleSize = 1;
+        LocalFileDecoder       mLocalDecoder;
 
-        InputStreamHandlingTask(ShutterbugStreamOpener downloader, DownloadRequest downloadRequest) {
+        InputStreamHandlingTask(ShutterbugStreamOpener downloader, DownloadRequest downloadRequest, InputStream inStream) {
             mDownloader = downloader;
             mDownloadRequest = downloadRequest;
-            mViewWidth = downloadRequest.getListener().getDesiredWidth();
-            mViewHeight = downloadRequest.getListener().getDesiredHeight();
+            mInStream = new CountingInputStream(inStream);
+            mFileStream = inStream instanceof FileInputStream ? (FileInputStream) inStream : null;
+            // Asset streams can be reset, unlike the counting wrapper
+            mAssetStream = AssetParser.isAssetUri(downloadRequest.getUrl()) ? inStream : null;
+            mExpectedLength = downloader.getContentLength();
+            mDecodePlan = new DecodePlan(downloadRequest.getUrl());
+            mStageTimings = StageTimings.createIfListening();
+            mQueuedAt = System.nanoTime();
+        }
+
+        /**
+         * Returns true if most of the expected bytes have already been read,
+         * in which case the task is left to finish storing them once its
+         * requests are cancelled.
+         */
+        boolean isNearlyStored() {
+            return mFinishNearlyCompleteDownloads && mExpectedLength > 0
+                    && mInStream.getCount() >= mExpectedLength * NEARLY_COMPLETE_RATIO;
+        }
+
+        @Override
+        public boolean isCancellationRequested() {
+            return isCancelled() && !isNearlyStored();
         }
 
+        /**
+         * @return true if the decode was handed over to the decode pool, which
+         *         then owns the stream and notifies the requests
+         */
         @Override
-        protected Bitmap doInBackground(Object... params) {
-            InputStream inStream = (InputStream) params[0];
+        protected Boolean doInBackground(Object... params) {
+            mMetrics.recordSince(Stage.QUEUE_WAIT, mQueuedAt, mStageTimings);
+            final InputStream inStream = mInStream;
+            if (isCancelled()) {
+                IO.closeQuietly( inStream );
+                return false;
+            }
+            final String url = mDownloadRequest.getUrl();
             final ImageCache sharedImageCache = ImageCache.getSharedImageCache(mContext);
-            final String cacheKey = ImageCache.getCacheKey(mDownloadRequest.getUrl());
-            Bitmap bitmap = null;
-            if (mDownloadRequest.getUrl().startsWith("http") || AssetParser.isAssetUri( mDownloadRequest.getUrl() ) ) {
+            final String cacheKey = ImageCache.getCacheKey(url);
+
+            // Plan one decode covering every size requested for this url so far.
+            // Requests attached later get the largest variant.
+            for (DownloadRequest request : mRegistry.getDownloadRequests(mDownloader)) {
+                ShutterbugManagerListener listener = mRegistry.getListener(request);
+                if (listener != null && !request.isDiskOnly()) {
+                    mDecodePlan.addRequest(request, listener.getDesiredWidth(), listener.getDesiredHeight());
+                }
+            }
+            // Nothing to decode if only prefetches into the disk cache are waiting
+            boolean needsDecode = !mDecodePlan.isEmpty();
+
+            Callable<Bitmap> decodeCall = null;
+            // What the decode reads, closed by it or if it is dropped
+            Closeable decodeInput = inStream;
+            if (url.startsWith("http") && !sharedImageCache.hasRoomFor(mExpectedLength)) {
+               IO.closeQuietly( inStream );
+               mFailureReason = FailureReason.NO_SPACE;
+            } else if (url.startsWith("http")) {
                // Store the image in the cache
-               Snapshot cachedSnapshot = sharedImageCache.storeToDisk(inStream, cacheKey);
-               if (cachedSnapshot != null) {
-                   bitmap = Bitmaps.safeDecodeStream(cachedSnapshot.getInputStream(0));
-                   cachedSnapshot.close();
-                   
-                   // Disabled for performance reasons. The caller of this AsyncTask will handling caching.
-//                   if (bitmap != null) {
-//                       sharedImageCache.storeToMemory(bitmap, cacheKey);
-//                   }
+               long writeStart = System.nanoTime();
+               Snapshot snapshot = sharedImageCache.storeToDisk(inStream, cacheKey, this,
+                       mDownloader.getValidator(), mExpectedLength);
+               mMetrics.recordSince(Stage.DISK_WRITE, writeStart, mStageTimings);
+               long transferNanos = mInStream.getReadNanos();
+               mMetrics.recordLatency(Stage.TRANSFER, transferNanos / 1000000L);
+               if (mStageTimings != null) {
+                   mStageTimings.record(Stage.TRANSFER, writeStart, writeStart + transferNanos);
                }
-            } else {
-               BitmapFactory.Options inOptions = new BitmapFactory.Options();
-               inOptions.inJustDecodeBounds = true;
-               BitmapFactory.decodeStream(inStream, null, inOptions);
-               
-               boolean haveValidViewBounds = mViewWidth > 0 && mViewHeight > 0; 
-               float scale = 1f;
-               
-               while (haveValidViewBounds && 
-                     (inOptions.outWidth / scale / 2) >= mViewWidth &&
-                     (inOptions.outHeight / scale / 2) >= mViewHeight) {
-                  scale *= 2f;
+               IO.closeQuietly( inStream );
+               if (snapshot == null && sharedImageCache.isBeingStored(url)) {
+                   // Another download of the url holds the disk entry, read
+                   // what it stores rather than failing
+                   snapshot = awaitStoredSnapshot(sharedImageCache, url, cacheKey);
                }
-               
-               FileInputStream fileInStream = null;
-               try {
-                  fileInStream = new FileInputStream(mDownloadRequest.getUrl());
-                  bitmap = Bitmaps.safeDecodeStream(fileInStream, (int)scale);
-               } catch (IOException e) {
-                  e.printStackTrace();
-               } finally {
-                  IO.closeQuietly( fileInStream );
+               // No one is waiting for the bitmap any more
+               needsDecode &= !isCancelled() && !mRegistry.getDownloadRequests(mDownloader).isEmpty();
+               if (snapshot != null && !needsDecode) {
+                   mStoredOnly = true;
+                   snapshot.close();
+               } else if (snapshot != null) {
+                   final Snapshot cachedSnapshot = snapshot;
+                   decodeInput = snapshot;
+                   decodeCall = new Callable<Bitmap>() {
+                       @Override
+                       public Bitmap call() throws IOException {
+                           Snapshot decodedSnapshot = cachedSnapshot;
+                           try {
+                               InputStream cachedStream = sharedImageCache.readThroughEncodedCache(cacheKey, decodedSnapshot);
+                               if (cachedStream == null) {
+                                   return null;
+                               }
+                               BitmapFactory.Options inOptions = new BitmapFactory.Options();
+                               inOptions.inJustDecodeBounds = true;
+                               if (cachedStream.markSupported()) {
+                                   cachedStream.mark(Integer.MAX_VALUE);
+                                   BitmapFactory.decodeStream(cachedStream, null, inOptions);
+                                   cachedStream.reset();
+                               } else {
+                                   // Read the bounds, then the image from a fresh snapshot
+                                   BitmapFactory.decodeStream(cachedStream, null, inOptions);
+                                   decodedSnapshot.close();
+                                   decodedSnapshot = sharedImageCache.getSnapshot(cacheKey);
+                                   if (decodedSnapshot == null) {
+                                       return null;
+                                   }
+                                   cachedStream = decodedSnapshot.getInputStream(0);
+                               }
+                               mSampleSize = mDecodePlan.getSampleSize(inOptions.outWidth, inOptions.outHeight);
+                               return Bitmaps.safeDecodeStream(cachedStream, mSampleSize);
+                           } finally {
+                               IO.closeQuietly( decodedSnapshot );
+                           }
+                       }
+                   };
                }
+            } else if (mAssetStream != null) {
+               // Assets are already on the device, decode them in place rather
+               // than copying them into the disk cache
+               if (!needsDecode) {
+                   // Kept open until delivery, for the requests attached meanwhile
+                   mStoredOnly = true;
+               } else {
+                   decodeCall = newAssetDecode();
+               }
+            } else if (mFileStream != null) {
+               // Local files are decoded from the descriptor they were opened with
+               mLocalDecoder = new LocalFileDecoder(mDecodePlan);
+               decodeCall = new Callable<Bitmap>() {
+                   @Override
+                   public Bitmap call() throws IOException {
+                       try {
+                           return mLocalDecoder.decode(mFileStream);
+                       } finally {
+                           IO.closeQuietly( inStream );
+                       }
+                   }
+               };
+            } else {
+               decodeCall = new Callable<Bitmap>() {
+                   @Override
+                   public Bitmap call() throws IOException {
+                       FileInputStream fileInStream = null;
+                       try {
+                           BitmapFactory.Options inOptions = new BitmapFactory.Options();
+                           inOptions.inJustDecodeBounds = true;
+                           BitmapFactory.decodeStream(inStream, null, inOptions);
+                           mSampleSize = mDecodePlan.getSampleSize(inOptions.outWidth, inOptions.outHeight);
+                           if (isCancelled()) {
+                               throw new IOException("Cancelled before decoding " + url);
+                           }
+                           fileInStream = new FileInputStream(url);
+                           return Bitmaps.safeDecodeStream(fileInStream, mSampleSize);
+                       } finally {
+                           IO.closeQuietly( fileInStream );
+                           IO.closeQuietly( inStream );
+                       }
+                   }
+               };
             }
 
-            IO.closeQuietly( inStream );
-            
-            return bitmap;
+            if (decodeCall == null) {
+                return false;
+            }
+            decode(decodeCall, decodeInput);
+            return true;
         }
 
-        @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            // Notify all the downloadListener with this downloader
-            for (int idx = mDownloaders.size() - 1; idx >= 0; idx--) {
-                final int uidx = idx;
-                ShutterbugStreamOpener aDownloader = mDownloaders.get(uidx);
-                if (aDownloader == mDownloader) {
-                    ShutterbugManagerListener listener = mDownloadImageListeners.get(uidx);
+        /**
+         * Waits until the disk entry of {@code url} is no longer being written
+         * by another download, or until the task is cancelled.
+         *
+         * @return the entry then stored, or null
+         */
+        private Snapshot awaitStoredSnapshot(ImageCache imageCache, String url, String cacheKey) {
+            try {
+                while (!isCancellationRequested() && !imageCache.awaitStored(url, JOIN_POLL_MILLIS)) {
+                    // Wakes up to check for cancellation
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return isCancellationRequested() ? null : imageCache.getSnapshot(cacheKey);
+        }
+
+        private Callable<Bitmap> newAssetDecode() {
+            mLocalDecoder = new LocalFileDecoder(mDecodePlan);
+            return new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws IOException {
+                    try {
+                        return mLocalDecoder.decodeStream(mAssetStream);
+                    } finally {
+                        IO.closeQuietly( mInStream );
+                    }
+                }
+            };
+        }
+
+        /**
+         * Decodes on the decode pool, at the priority of the download, then
+         * scales the variants there and notifies the requests on the main
+         * thread. If the decode is dropped, {@code decodeInput} is closed and
+         * the download fails as dropped.
+         */
+        private void decode(final Callable<Bitmap> decodeCall, final Closeable decodeInput) {
+            Priority priority = mRegistry.getDownloadPriority(mDownloader);
+            ShutterbugExecutors.getShared().decode(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws Exception {
+                    long decodeStart = System.nanoTime();
+                    Bitmap bitmap = decodeCall.call();
+                    mMetrics.recordSince(Stage.DECODE, decodeStart, mStageTimings);
+                    return bitmap;
+                }
+            }, priority != null ? priority : mDownloadRequest.getPriority(), mDownloader, new ShutterbugExecutors.DecodeCallback() {
+                @Override
+                public void onDecoded(final Bitmap bitmap) {
+                    if (bitmap == null && InlineLoader.isReadInPlace(mDownloadRequest.getUrl())) {
+                        // Reading files on the device again will not help
+                        mFailureReason = FailureReason.NOT_FOUND;
+                    }
                     if (bitmap != null) {
-                        listener.onImageSuccess(ShutterbugManager.this, bitmap, mDownloadRequest.getUrl());
-                    } else {
-                        listener.onImageFailure(ShutterbugManager.this, mDownloadRequest.getUrl());
+                        boolean isFullSize = mLocalDecoder != null ? mLocalDecoder.isFullSize() : mSampleSize == 1;
+                        mInlineLoader.storeVariants(mDecodePlan, bitmap, isFullSize,
+                                mAssetStream != null && mLocalDecoder.isExpensive(), mStageTimings);
+                    }
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliver(bitmap);
+                        }
+                    });
+                }
+
+                @Override
+                public void onDropped() {
+                    IO.closeQuietly( decodeInput );
+                    if (mHandlingTasks.get(mDownloader) == InputStreamHandlingTask.this) {
+                        mHandlingTasks.remove(mDownloader);
+                    }
+                    if (!isCancelled()) {
+                        onDownloadFailure(mDownloader, FailureReason.DROPPED);
                     }
-                    mDownloaders.remove(uidx);
-                    mDownloadImageListeners.remove(uidx);
-                    mDownloadRequests.remove(uidx);
                 }
+            });
+        }
+
+        @Override
+        protected void onCancelled(Boolean decoding) {
+            // The task may have been cancelled before it ran. Once handed over,
+            // the stream belongs to the decode.
+            if (!Boolean.TRUE.equals(decoding)) {
+                IO.closeQuietly( mInStream );
             }
-            if (bitmap != null) {
-            } else { // TODO add retry option
-                mFailedUrls.add(mDownloadRequest.getUrl());
+            if (mHandlingTasks.get(mDownloader) == this) {
+                mHandlingTasks.remove(mDownloader);
             }
-            mDownloadersMap.remove(mDownloadRequest.getUrl());
         }
 
-    }
-
-    public void cancel(ShutterbugManagerListener listener) {
-        int idx;
-        while ((idx = mCacheListeners.indexOf(listener)) != -1) {
-            mCacheListeners.remove(idx);
-            mCacheUrls.remove(idx);
+        @Override
+        protected void onPostExecute(Boolean decoding) {
+            if (!decoding) {
+                deliver(null);
+            }
         }
 
-        while ((idx = mDownloadImageListeners.indexOf(listener)) != -1) {
-            ShutterbugStreamOpener downloader = mDownloaders.get(idx);
+        private void deliver(Bitmap bitmap) {
+            if (mHandlingTasks.get(mDownloader) == this) {
+                mHandlingTasks.remove(mDownloader);
+            }
+            if (isCancelled()) {
+                return;
+            }
+            // Notify all the downloadListener with this downloader, each with
+            // the variant decoded for its size
+            if (bitmap == null && !mStoredOnly) {
+                // Truncated or corrupt downloads are worth another try, unlike
+                // local images that do not decode
+                onDownloadFailure(mDownloader, mFailureReason);
+                return;
+            }
+            if (mStoredOnly && mAssetStream != null) {
+                // Assets are not stored anywhere: decode the open stream for
+                // the requests attached meanwhile instead of opening it again
+                for (DownloadRequest request : mRegistry.getDownloadRequests(mDownloader)) {
+                    ShutterbugManagerListener listener = mRegistry.getListener(request);
+                    if (listener != null && !request.isDiskOnly()) {
+                        mDecodePlan.addRequest(request, listener.getDesiredWidth(), listener.getDesiredHeight());
+                    }
+                }
+                if (!mDecodePlan.isEmpty()) {
+                    mStoredOnly = false;
+                    mHandlingTasks.put(mDownloader, this);
+                    decode(newAssetDecode(), mInStream);
+                    return;
+                }
+                IO.closeQuietly( mInStream );
+            }
+            mRetryCounts.remove(mDownloader);
+            Map<DownloadRequest, ShutterbugManagerListener> requests = mRegistry.completeDownload(mDownloader);
+            for (Map.Entry<DownloadRequest, ShutterbugManagerListener> request : requests.entrySet()) {
+                DownloadRequest downloadRequest = request.getKey();
+                ShutterbugManagerListener listener = request.getValue();
+                if (bitmap == null && !downloadRequest.isDiskOnly()) {
+                    // Attached after the download was stored without decoding,
+                    // it is read from the disk cache by a new request, which
+                    // is reported on its own
+                    download(downloadRequest.getRequestedUrl(), listener, downloadRequest.getPriority(),
+                            downloadRequest.getRetryPolicy());
+                    continue;
+                }
+                long deliveryStart = beforeDelivery(downloadRequest, mDownloader.getStageTimings(), mStageTimings);
+                listener.onImageSuccess(ShutterbugManager.this, bitmap != null ? mDecodePlan.getBitmap(downloadRequest) : null,
+                        downloadRequest.getRequestedUrl());
+                afterDelivery(downloadRequest, Outcome.DOWNLOADED, deliveryStart);
+            }
+            mMetrics.increment(ShutterbugMetrics.DOWNLOADS_SUCCEEDED);
+        }
 
-            mDownloadRequests.remove(idx);
-            mDownloadImageListeners.remove(idx);
-            mDownloaders.remove(idx);
+    }
 
-            if (!mDownloaders.contains(downloader)) {
+    public void cancel(ShutterbugManagerListener listener) {
+        ImageCache imageCache = ImageCache.getSharedImageCache(mContext);
+        RequestEventListener eventListener = mMetrics.getRequestEventListener();
+        for (DownloadRequest downloadRequest : mRegistry.getRequests(listener)) {
+            // Don't let queued disk lookups hold back the requests that replace them
+            imageCache.cancelQuery(downloadRequest);
+            if (eventListener != null && downloadRequest.getStageTimings() != null) {
+                downloadRequest.getStageTimings().dispatch(eventListener, downloadRequest.getId());
+                eventListener.onRequestFinished(downloadRequest.getId(), Outcome.CANCELLED, System.nanoTime());
+            }
+        }
+        // Held so that no request attaches to a download while it is cancelled
+        synchronized (mRegistry) {
+            for (ShutterbugStreamOpener downloader : mRegistry.cancel(listener)) {
                 // No more listeners are waiting for this download, cancel it
+                InputStreamHandlingTask task = mHandlingTasks.get(downloader);
+                if (task != null && task.isNearlyStored()) {
+                    // Let it complete to disk, without decoding unless new
+                    // requests for the url join it meanwhile
+                    continue;
+                }
+                mRegistry.removeDownload(downloader);
+                if (task != null) {
+                    mHandlingTasks.remove(downloader);
+                    task.cancel(false);
+                    getHandlingExecutor(downloader).cancel(downloader);
+                    // Its decode releases the snapshot or stream it holds once dropped
+                    ShutterbugExecutors.getShared().getDecodeExecutor().drop(downloader);
+                }
                 downloader.cancel();
-                mDownloadersMap.remove(downloader.getResourceUrl());
             }
         }
+    }
 
+    /**
+     * Changes the priority of all the pending requests of {@code listener},
+     * e.g. to demote the images of a view scrolled off screen. Work that has
+     * already started is not affected, and a download shared with other
+     * requests keeps the highest priority among them.
+     */
+    public void setPriority(ShutterbugManagerListener listener, Priority priority) {
+        ImageCache imageCache = ImageCache.getSharedImageCache(mContext);
+        for (DownloadRequest downloadRequest : mRegistry.getRequests(listener)) {
+            downloadRequest.setPriority(priority);
+            ShutterbugStreamOpener downloader = mRegistry.getDownloaderOf(downloadRequest);
+            if (downloader == null) {
+                imageCache.setQueryPriority(downloadRequest, priority);
+                continue;
+            }
+            Priority downloadPriority = mRegistry.getDownloadPriority(downloader);
+            if (downloadPriority != null) {
+                downloader.setPriority(downloadPriority);
+                getHandlingExecutor(downloader).setPriority(downloader, downloadPriority);
+                ShutterbugExecutors.getShared().getDecodeExecutor().setPriority(downloader, downloadPriority);
+            }
+        }
     }
 }
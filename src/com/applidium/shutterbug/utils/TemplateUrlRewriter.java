@@ -0,0 +1,77 @@
+package com.applidium.shutterbug.utils;
+
+import java.util.Arrays;
+
+/**
+ * A {@link UrlRewriter} filling a url template, for image servers taking the
+ * size in the url. Sizes are rounded up to a few buckets to keep the number
+ * of variants, and of cache entries, low.
+ * <p>
+ * The template can contain:
+ * <ul>
+ * <li>{@code {url}}, the original url
+ * <li>{@code {path}}, the original url without the prefix of the rewriter
+ * <li>{@code {width}} and {@code {height}}, the desired size rounded up to a
+ * bucket
+ * <li>{@code {size}}, the larger of the two dimensions rounded up to a
+ * bucket, for servers fitting images in a square
+ * </ul>
+ * For instance
+ * {@code new TemplateUrlRewriter("https://images.example.com/", "https://images.example.com/{size}/{path}")}.
+ */
+public class TemplateUrlRewriter implements UrlRewriter {
+    private static final int[] DEFAULT_BUCKETS = { 64, 128, 256, 512, 1024, 2048 };
+
+    private final String       mUrlPrefix;
+    private final String       mTemplate;
+    private final int[]        mBuckets;
+
+    public TemplateUrlRewriter(String urlPrefix, String template) {
+        this(urlPrefix, template, DEFAULT_BUCKETS);
+    }
+
+    /**
+     * @param urlPrefix
+     *            the prefix of the urls served by the image server, the other
+     *            urls are left as they are
+     * @param buckets
+     *            the sizes the server is asked for. Images displayed larger
+     *            than the largest one are downloaded in full.
+     */
+    public TemplateUrlRewriter(String urlPrefix, String template, int[] buckets) {
+        mUrlPrefix = urlPrefix;
+        mTemplate = template;
+        mBuckets = buckets.clone();
+        Arrays.sort(mBuckets);
+    }
+
+    @Override
+    public String rewrite(String url, int desiredWidth, int desiredHeight) {
+        if (!url.startsWith(mUrlPrefix)) {
+            return null;
+        }
+        int width = getBucket(desiredWidth);
+        int height = getBucket(desiredHeight);
+        if (width < 0 || height < 0) {
+            return null;
+        }
+        return mTemplate.replace("{url}", url)
+                .replace("{path}", url.substring(mUrlPrefix.length()))
+                .replace("{width}", String.valueOf(width))
+                .replace("{height}", String.valueOf(height))
+                .replace("{size}", String.valueOf(Math.max(width, height)));
+    }
+
+    /**
+     * Returns the smallest bucket holding {@code size}, or -1 if there is
+     * none.
+     */
+    private int getBucket(int size) {
+        for (int bucket : mBuckets) {
+            if (bucket >= size) {
+                return bucket;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,20 @@
+package com.applidium.shutterbug.utils;
+
+/**
+ * Maps an image and the size it is displayed at to the url of a variant of
+ * that image resized by the server, so that thumbnails are not downloaded at
+ * full resolution. Installed with {@link ShutterbugManager#setUrlRewriter}.
+ * <p>
+ * The variant url is what gets downloaded and cached: requests mapped to the
+ * same variant share its disk entry, and each is decoded from it at its own
+ * size. Implementations should therefore map nearby sizes to the same
+ * variant.
+ */
+public interface UrlRewriter {
+    /**
+     * Returns the url of a variant of {@code url} at least
+     * {@code desiredWidth} by {@code desiredHeight}, or null to download the
+     * original.
+     */
+    String rewrite(String url, int desiredWidth, int desiredHeight);
+}